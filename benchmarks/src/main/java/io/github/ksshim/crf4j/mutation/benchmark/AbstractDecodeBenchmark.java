@@ -0,0 +1,86 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.model.Model;
+import io.github.ksshim.crf4j.mutation.tagger.DecodeTagger;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of one sentence (sentences in turn) : end-to-end and each phase in isolation.
+ * Phase benchmarks run on taggers prepared up to the phase before, one per sentence.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractDecodeBenchmark {
+
+    private List<List<String>> sentences;
+    private DecodeTagger tagger;
+    private DecodeTagger[] preparedTaggers;
+    private int next;
+
+    protected abstract Model createModel() throws Exception;
+
+    protected abstract List<List<String>> createSentences() throws Exception;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Model model = createModel();
+        this.sentences = createSentences();
+        this.tagger = model.createTagger();
+
+        // features and lattices built
+        this.preparedTaggers = new DecodeTagger[sentences.size()];
+        for(int i=0; i<sentences.size(); i++) {
+            DecodeTagger preparedTagger = model.createTagger();
+            for(String line : sentences.get(i)) {
+                preparedTagger.add(line);
+            }
+            preparedTagger.parse();
+            preparedTaggers[i] = preparedTagger;
+        }
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = next + 1 == sentences.size() ? 0 : next + 1;
+        return index;
+    }
+
+    @Benchmark
+    public double parse() {
+        tagger.clear();
+        for(String line : sentences.get(nextIndex())) {
+            tagger.add(line);
+        }
+        tagger.parse();
+        return tagger.getCost();
+    }
+
+    @Benchmark
+    public int buildFeatures() {
+        DecodeTagger preparedTagger = preparedTaggers[nextIndex()];
+        preparedTagger.getFeatureIdListCache().clear();
+        preparedTagger.getFeatureIndex().buildFeatures(preparedTagger);
+        return preparedTagger.getFeatureIdListCache().size();
+    }
+
+    @Benchmark
+    public DecodeTagger buildLattice() {
+        DecodeTagger preparedTagger = preparedTaggers[nextIndex()];
+        preparedTagger.buildLattice();
+        return preparedTagger;
+    }
+
+    @Benchmark
+    public double viterbi() {
+        DecodeTagger preparedTagger = preparedTaggers[nextIndex()];
+        preparedTagger.viterbi();
+        return preparedTagger.getCost();
+    }
+}
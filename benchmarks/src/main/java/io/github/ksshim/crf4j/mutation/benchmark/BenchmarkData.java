@@ -0,0 +1,173 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.CRFTrainer;
+import io.github.ksshim.crf4j.mutation.constants.Algorithm;
+import io.github.ksshim.crf4j.mutation.constants.ModelFormat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Corpora and models of the benchmarks.
+ * <p>
+ * Bundled corpora are read from the data directory (system property crf4j.data, "data" by default) :
+ * data/{corpus}/template, train.data and test.data. Synthetic corpora have tagSize tags
+ * and tokens which depend on the tag, and use the template of data/seg ; as a corpus name
+ * they are "synthetic-{tagSize}".
+ */
+public class BenchmarkData {
+
+    private final static String SYNTHETIC = "synthetic-";
+    private final static int SYNTHETIC_VOCABULARY_SIZE = 1000;
+    private final static int SYNTHETIC_TRAIN_SENTENCE_SIZE = 300;
+    private final static int SYNTHETIC_TRAIN_SENTENCE_LENGTH = 20;
+
+    public static String dataDir() {
+        return System.getProperty("crf4j.data", "data");
+    }
+
+    public static String templatePath(String corpus) {
+        if(corpus.startsWith(SYNTHETIC)) corpus = "seg";
+        return dataDir() + "/" + corpus + "/template";
+    }
+
+    public static String trainPath(String corpus) {
+        return dataDir() + "/" + corpus + "/train.data";
+    }
+
+    public static String testPath(String corpus) {
+        return dataDir() + "/" + corpus + "/test.data";
+    }
+
+    /**
+     * Trains a model into a temporary file.
+     *
+     * @return path of the model
+     */
+    public static String trainModel(String templatePath,
+                                    String trainPath,
+                                    int maxIterations,
+                                    ModelFormat modelFormat) throws Exception {
+        File modelFile = File.createTempFile("crf4j-benchmark", ".model");
+        modelFile.deleteOnExit();
+
+        CRFTrainer.builder()
+                .algorithm(Algorithm.CRF_L2)
+                .inTemplateFilePath(templatePath)
+                .inTrainFilePath(trainPath)
+                .outModelFilePath(modelFile.getPath())
+                .maxIterations(maxIterations)
+                .nThreads(1)
+                .modelFormat(modelFormat)
+                .build()
+                .train();
+        return modelFile.getPath();
+    }
+
+    /**
+     * @return sentences (lines of columns) of a file, separated by blank lines
+     */
+    public static List<List<String>> readSentences(String path) throws IOException {
+        List<List<String>> sentences = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(path), StandardCharsets.UTF_8))) {
+
+            List<String> lines = new ArrayList<>();
+            String line;
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(!line.isEmpty()) {
+                    lines.add(line);
+                    continue;
+                }
+
+                if(!lines.isEmpty()) sentences.add(lines);
+                lines = new ArrayList<>();
+            }
+            if(!lines.isEmpty()) sentences.add(lines);
+        }
+        return sentences;
+    }
+
+    //**********************************************************
+    // Synthetic corpora
+    //**********************************************************
+    /**
+     * @return sentences of "token \t tag" lines
+     */
+    public static List<List<String>> syntheticSentences(int sentenceSize,
+                                                        int length,
+                                                        int tagSize,
+                                                        long seed) {
+        Random random = new Random(seed);
+        List<List<String>> sentences = new ArrayList<>(sentenceSize);
+        for(int i=0; i<sentenceSize; i++) {
+            List<String> lines = new ArrayList<>(length);
+            int tag = random.nextInt(tagSize);
+            for(int j=0; j<length; j++) {
+                // tags mostly follow each other in order, tokens mostly depend on the tag
+                tag = random.nextInt(2) == 0 ? (tag + 1) % tagSize : random.nextInt(tagSize);
+                int token = random.nextInt(4) == 0 ?
+                        random.nextInt(SYNTHETIC_VOCABULARY_SIZE) :
+                        (tag * 37 + random.nextInt(40)) % SYNTHETIC_VOCABULARY_SIZE;
+                lines.add("w" + token + "\tT" + tag);
+            }
+            sentences.add(lines);
+        }
+        return sentences;
+    }
+
+    /**
+     * Writes a synthetic train corpus into a temporary file.
+     *
+     * @return path of the corpus
+     */
+    public static String writeSyntheticTrainData(int tagSize,
+                                                 long seed) throws IOException {
+        return writeSentences(syntheticSentences(
+                SYNTHETIC_TRAIN_SENTENCE_SIZE, SYNTHETIC_TRAIN_SENTENCE_LENGTH, tagSize, seed));
+    }
+
+    /**
+     * @return sentenceSize train sentences of the corpus, those of a bundled corpus repeated if needed
+     */
+    public static List<List<String>> trainSentences(String corpus,
+                                                    int sentenceSize) throws IOException {
+        if(corpus.startsWith(SYNTHETIC)) {
+            int tagSize = Integer.parseInt(corpus.substring(SYNTHETIC.length()));
+            return syntheticSentences(sentenceSize, SYNTHETIC_TRAIN_SENTENCE_LENGTH, tagSize, 1L);
+        }
+
+        List<List<String>> sentences = readSentences(trainPath(corpus));
+        List<List<String>> result = new ArrayList<>(sentenceSize);
+        for(int i=0; i<sentenceSize; i++) {
+            result.add(sentences.get(i % sentences.size()));
+        }
+        return result;
+    }
+
+    /**
+     * Writes sentences into a temporary file.
+     *
+     * @return path of the file
+     */
+    public static String writeSentences(List<List<String>> sentences) throws IOException {
+        File trainFile = File.createTempFile("crf4j-benchmark", ".data");
+        trainFile.deleteOnExit();
+
+        try (BufferedWriter out = Files.newBufferedWriter(trainFile.toPath(), StandardCharsets.UTF_8)) {
+            for(List<String> lines : sentences) {
+                for(String line : lines) {
+                    out.write(line);
+                    out.newLine();
+                }
+                out.newLine();
+            }
+        }
+        return trainFile.getPath();
+    }
+}
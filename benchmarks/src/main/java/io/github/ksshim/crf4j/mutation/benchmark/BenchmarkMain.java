@@ -0,0 +1,29 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks with the usual JMH command line (e.g. "Decode -p tagSize=8"),
+ * with the gc profiler (allocation rate) unless profilers are given.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        if(commandLineOptions.shouldHelp() || commandLineOptions.shouldList() ||
+                commandLineOptions.shouldListProfilers() || commandLineOptions.shouldListResultFormats()) {
+            // the JMH launcher prints them
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+        if(commandLineOptions.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.constants.ModelFormat;
+import io.github.ksshim.crf4j.mutation.model.Model;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.List;
+
+/**
+ * Decoding of the test sentences of a bundled corpus, with a model trained on its train data.
+ * Other corpora of the data directory can be added by -p corpus=seg,spacing.
+ */
+public class CorpusDecodeBenchmark extends AbstractDecodeBenchmark {
+
+    @Param({"seg"})
+    public String corpus;
+
+    @Param({"50"})
+    public int maxIterations;
+
+    @Override
+    protected Model createModel() throws Exception {
+        return new Model(BenchmarkData.trainModel(
+                BenchmarkData.templatePath(corpus), BenchmarkData.trainPath(corpus),
+                maxIterations, ModelFormat.SERIALIZED));
+    }
+
+    @Override
+    protected List<List<String>> createSentences() throws Exception {
+        return BenchmarkData.readSentences(BenchmarkData.testPath(corpus));
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.optimizer.LbfgsOptimizer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One L-BFGS step across weight (feature-space) sizes, on a separable quadratic objective
+ * whose evaluation (O(size)) is part of the step. The optimizer restarts every RESTART_STEPS steps,
+ * before the line search reaches machine precision.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LbfgsBenchmark {
+
+    private final static int RESTART_STEPS = 20;
+
+    @Param({"10000", "100000", "1000000"})
+    public int weightSize;
+
+    // true : L1 (orthant-wise), false : L2
+    @Param({"false", "true"})
+    public boolean orthant;
+
+    private LbfgsOptimizer lbfgs;
+    private double[] x;
+    private double[] g;
+    private double[] scales;
+    private double[] centers;
+    private double f;
+    private int step;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(5L);
+        this.scales = new double[weightSize];
+        this.centers = new double[weightSize];
+        for(int i=0; i<weightSize; i++) {
+            scales[i] = 1.0 + random.nextDouble() * 9.0;
+            centers[i] = random.nextGaussian();
+        }
+        this.x = new double[weightSize];
+        this.g = new double[weightSize];
+        this.lbfgs = new LbfgsOptimizer();
+        evaluate();
+    }
+
+    // f = sum of scale * (x - center)^2 / 2
+    private void evaluate() {
+        f = 0.0;
+        for(int i=0; i<weightSize; i++) {
+            double d = x[i] - centers[i];
+            f += 0.5 * scales[i] * d * d;
+            g[i] = scales[i] * d;
+        }
+    }
+
+    @Benchmark
+    public double optimize() {
+        if(++step == RESTART_STEPS || lbfgs.optimize(weightSize, x, f, g, orthant, 1.0) <= 0) {
+            lbfgs.clear();
+            Arrays.fill(x, 0.0);
+            step = 0;
+        }
+        evaluate();
+        return f;
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.constants.ModelFormat;
+import io.github.ksshim.crf4j.mutation.model.Model;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading of a model trained on a bundled corpus, by model format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelLoadBenchmark {
+
+    @Param({"seg"})
+    public String corpus;
+
+    @Param({"SERIALIZED", "BINARY"})
+    public ModelFormat modelFormat;
+
+    private String modelPath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.modelPath = BenchmarkData.trainModel(
+                BenchmarkData.templatePath(corpus), BenchmarkData.trainPath(corpus), 50, modelFormat);
+    }
+
+    @Benchmark
+    public Model load() {
+        return new Model(modelPath);
+    }
+}
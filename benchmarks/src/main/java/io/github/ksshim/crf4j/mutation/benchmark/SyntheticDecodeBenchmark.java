@@ -0,0 +1,38 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.constants.ModelFormat;
+import io.github.ksshim.crf4j.mutation.model.Model;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.List;
+
+/**
+ * Decoding of synthetic sentences across sentence lengths and tag counts,
+ * with a model trained on a synthetic corpus of the same tags.
+ */
+public class SyntheticDecodeBenchmark extends AbstractDecodeBenchmark {
+
+    // about this many tokens in all sentences, so that prepared lattices fit in memory
+    private final static int TOKEN_SIZE = 4096;
+
+    @Param({"8", "32", "128", "512"})
+    public int length;
+
+    @Param({"2", "8", "32"})
+    public int tagSize;
+
+    @Param({"20"})
+    public int maxIterations;
+
+    @Override
+    protected Model createModel() throws Exception {
+        return new Model(BenchmarkData.trainModel(
+                BenchmarkData.templatePath("seg"), BenchmarkData.writeSyntheticTrainData(tagSize, 1L),
+                maxIterations, ModelFormat.SERIALIZED));
+    }
+
+    @Override
+    protected List<List<String>> createSentences() {
+        return BenchmarkData.syntheticSentences(Math.max(4, TOKEN_SIZE / length), length, tagSize, 2L);
+    }
+}
@@ -0,0 +1,113 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.lattice.ScaledForwardBackward;
+import io.github.ksshim.crf4j.mutation.tagger.EncodeTagger;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training inner loop on one sentence (sentences in turn) : the whole gradient,
+ * and forward-backward and node expectations in isolation on taggers whose lattices are built,
+ * by the log-space and the scaled (probability-space) forward-backward.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrainingBenchmark {
+
+    // taggers whose lattices are kept built
+    private final static int PREPARED_TAGGER_SIZE = 64;
+
+    @Param({"seg", "synthetic-4", "synthetic-16"})
+    public String corpus;
+
+    @Param({"1000"})
+    public int sentenceSize;
+
+    private List<EncodeTagger> taggerList;
+    private EncodeTagger[] preparedTaggers;
+    private double[] expected;
+    private final ScaledForwardBackward scaledForwardBackward = new ScaledForwardBackward();
+    private int next;
+    private int nextPrepared;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        TrainingSet trainingSet = TrainingSet.open(corpus, sentenceSize, 1);
+        this.taggerList = trainingSet.getTaggerList();
+        this.expected = new double[trainingSet.weightSize()];
+
+        this.preparedTaggers = new EncodeTagger[Math.min(PREPARED_TAGGER_SIZE, taggerList.size())];
+        for(int i=0; i<preparedTaggers.length; i++) {
+            EncodeTagger tagger = taggerList.get(taggerList.size() - 1 - i);
+            tagger.buildLattice();
+            tagger.forwardBackward();
+            preparedTaggers[i] = tagger;
+        }
+        this.taggerList = taggerList.subList(0, taggerList.size() - preparedTaggers.length);
+    }
+
+    private EncodeTagger nextTagger() {
+        EncodeTagger tagger = taggerList.get(next);
+        next = next + 1 == taggerList.size() ? 0 : next + 1;
+        return tagger;
+    }
+
+    private EncodeTagger nextPreparedTagger() {
+        EncodeTagger tagger = preparedTaggers[nextPrepared];
+        nextPrepared = nextPrepared + 1 == preparedTaggers.length ? 0 : nextPrepared + 1;
+        return tagger;
+    }
+
+    /**
+     * Same as a sentence of CRFTrainingThread : gradient (lattice, forward-backward, expectations, viterbi)
+     * and freeing the lattice.
+     */
+    @Benchmark
+    public double gradient() {
+        EncodeTagger tagger = nextTagger();
+        double obj = tagger.gradient(expected);
+        tagger.clearNode();
+        return obj;
+    }
+
+    @Benchmark
+    public double scaledGradient() {
+        EncodeTagger tagger = nextTagger();
+        double obj = tagger.gradient(expected, scaledForwardBackward);
+        tagger.clearNode();
+        return obj;
+    }
+
+    @Benchmark
+    public double forwardBackward() {
+        EncodeTagger tagger = nextPreparedTagger();
+        tagger.forwardBackward();
+        return tagger.getZ();
+    }
+
+    @Benchmark
+    public double[] calculateExpectation() {
+        EncodeTagger tagger = nextPreparedTagger();
+        for(int i=0; i<tagger.inputColumnListSize(); i++) {
+            for(int j=0; j<tagger.getTagListSize(); j++) {
+                tagger.getNodeAt(i, j).calculateExpectation(expected, tagger.getZ(), tagger.getTagListSize());
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Scaled forward-backward and expectations, to compare with forwardBackward + calculateExpectation.
+     */
+    @Benchmark
+    public double scaledForwardBackward() {
+        EncodeTagger tagger = nextPreparedTagger();
+        return scaledForwardBackward.calculateExpectation(tagger, expected);
+    }
+}
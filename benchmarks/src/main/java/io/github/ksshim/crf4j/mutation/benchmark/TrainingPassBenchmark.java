@@ -0,0 +1,78 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.CRFTrainingThread;
+import io.github.ksshim.crf4j.mutation.constants.ForwardBackward;
+import io.github.ksshim.crf4j.mutation.constants.GradientAccumulation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One pass of the training threads over the whole corpus (CRFTrainingThread.call() of every thread),
+ * across thread counts and corpus sizes. Scaling per core is the 1-thread score over nThreads times the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingPassBenchmark {
+
+    @Param({"seg", "synthetic-16"})
+    public String corpus;
+
+    @Param({"250", "1000", "4000"})
+    public int sentenceSize;
+
+    @Param({"1", "2", "4"})
+    public int nThreads;
+
+    @Param({"LOG", "SCALED"})
+    public ForwardBackward forwardBackward;
+
+    @Param({"DENSE", "SPARSE"})
+    public GradientAccumulation gradientAccumulation;
+
+    private List<CRFTrainingThread> threads;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        TrainingSet trainingSet = TrainingSet.open(corpus, sentenceSize, nThreads);
+
+        // same as CRFTrainer
+        this.threads = new ArrayList<>(nThreads);
+        for(int i=0; i<nThreads; i++) {
+            threads.add(CRFTrainingThread.builder()
+                    .weightSize(trainingSet.weightSize())
+                    .startIndex(i)
+                    .nThreads(nThreads)
+                    .forwardBackward(forwardBackward)
+                    .gradientAccumulation(gradientAccumulation)
+                    .taggerList(trainingSet.getTaggerList())
+                    .build());
+        }
+        this.executor = Executors.newFixedThreadPool(nThreads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public double pass() throws Exception {
+        executor.invokeAll(threads);
+
+        double obj = 0.0;
+        for(CRFTrainingThread thread : threads) {
+            obj += thread.getObj();
+        }
+        return obj;
+    }
+}
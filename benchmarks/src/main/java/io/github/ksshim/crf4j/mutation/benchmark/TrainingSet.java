@@ -0,0 +1,85 @@
+package io.github.ksshim.crf4j.mutation.benchmark;
+
+import io.github.ksshim.crf4j.mutation.feature.EncodeFeatureIndex;
+import io.github.ksshim.crf4j.mutation.tagger.EncodeTagger;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Feature-index, taggers (features built) and weights of a corpus, as CRFTrainer has them before its iterations.
+ * Weights are small random values instead of trained ones.
+ */
+public class TrainingSet {
+
+    private final EncodeFeatureIndex featureIndex;
+    private final List<EncodeTagger> taggerList;
+    private final double[] alpha;
+
+    private TrainingSet(EncodeFeatureIndex featureIndex,
+                        List<EncodeTagger> taggerList,
+                        double[] alpha) {
+        this.featureIndex = featureIndex;
+        this.taggerList = taggerList;
+        this.alpha = alpha;
+    }
+
+    public static TrainingSet open(String corpus,
+                                   int sentenceSize,
+                                   int nThreads) throws Exception {
+
+        // 1. feature-index
+        String trainPath = BenchmarkData.writeSentences(BenchmarkData.trainSentences(corpus, sentenceSize));
+        EncodeFeatureIndex featureIndex = new EncodeFeatureIndex(nThreads);
+        featureIndex.open(BenchmarkData.templatePath(corpus), trainPath);
+
+        // 2. taggers
+        List<EncodeTagger> taggerList = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(trainPath), StandardCharsets.UTF_8))) {
+            while(true) {
+                EncodeTagger tagger = new EncodeTagger();
+                tagger.open(featureIndex);
+                try {
+                    tagger.read(in);
+                } catch (EOFException eof) {
+                    if(tagger.isEmpty()) break;
+                }
+
+                tagger.shrink();
+                tagger.setThreadId(taggerList.size() % nThreads);
+                taggerList.add(tagger);
+            }
+        }
+
+        // 3. weights
+        double[] alpha = featureIndex.initAlpha();
+        Random random = new Random(3L);
+        for(int i=0; i<alpha.length; i++) {
+            alpha[i] = random.nextGaussian() * 0.1;
+        }
+        return new TrainingSet(featureIndex, taggerList, alpha);
+    }
+
+    public EncodeFeatureIndex getFeatureIndex() {
+        return featureIndex;
+    }
+
+    public List<EncodeTagger> getTaggerList() {
+        return taggerList;
+    }
+
+    public double[] getAlpha() {
+        return alpha;
+    }
+
+    public int weightSize() {
+        return alpha.length;
+    }
+}
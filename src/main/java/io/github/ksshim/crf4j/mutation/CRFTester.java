@@ -1,18 +1,38 @@
 package io.github.ksshim.crf4j.mutation;
 
+import io.github.ksshim.crf4j.mutation.constants.WeightType;
 import io.github.ksshim.crf4j.mutation.model.Model;
 import io.github.ksshim.crf4j.mutation.tagger.Tagger;
 import lombok.Builder;
 import lombok.extern.log4j.Log4j2;
 
 import java.io.*;
-
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Labels test data and scores it.
+ * Labeling is pipelined : the calling thread reads sentences and hands them to nThreads workers
+ * (each with its own tagger), then writes the results in input order while accumulating the score.
+ */
 @Log4j2
 @Builder
 public class CRFTester {
 
     @Builder.Default
     private final double costFactor = 1.0;
+    @Builder.Default
+    private final WeightType weightType = WeightType.DOUBLE;
+    @Builder.Default
+    private final int nThreads = Runtime.getRuntime().availableProcessors();
+    // max number of sentences being labeled or waiting to be written, per thread
+    @Builder.Default
+    private final int queueSizePerThread = 64;
 
     private final String inModelFilePath;
     private final String inTestFilePath;
@@ -20,67 +40,125 @@ public class CRFTester {
 
     public void test() throws Exception {
 
-        // 1. create tagger and featureIndex
-        log.info("Start creating model and tagger ...");
-        Model model = new Model(inModelFilePath);
-        Tagger tagger = model.createTagger(costFactor);
-        log.info("End creating model and tagger ...");
-
-        // 2. read test data and label it
-        log.info("Start reading test data and labeling it ...");
-        readAndLabelData(tagger);
-        log.info("End reading test data and labeling it ...");
-
-        // 3. calculate score
-        log.info("Start calculating score and printing it ...");
-        printAndCalculateScore();
-        log.info("End calculating score and printing it ...");
+        // 1. validate parameters
+        validate();
+
+        // 2. create model
+        log.info("Start creating model ...");
+        Model model = new Model(inModelFilePath, weightType);
+        log.info("End creating model ...");
+
+        // 3. read test data, label it and calculate score
+        log.info("Start reading test data, labeling and scoring it ...");
+        double score = labelAndScore(model, outFilePath);
+        log.info("End reading test data, labeling and scoring it ...");
+
+        // 4. compare with the double(not quantized) model
+        if(weightType != WeightType.DOUBLE) {
+            log.info("Start comparing with the double model ...");
+            double doubleScore = labelAndScore(new Model(inModelFilePath), null);
+            log.info("Score delta ({} - DOUBLE) : {}", weightType, score - doubleScore);
+            log.info("End comparing with the double model ...");
+        }
     }
 
-    private void readAndLabelData(Tagger tagger) throws Exception {
+    private void validate() {
+        if(nThreads <= 0) throw new RuntimeException("thread must be > 0");
+        if(queueSizePerThread <= 0) throw new RuntimeException("queueSizePerThread must be > 0");
+    }
 
+    private static class LabeledSentence {
+        String result;
+        int correct = 0;
+        int total = 0;
+    }
+
+    /**
+     * @param outFilePath where labeled data is written, nothing is written if null
+     */
+    private double labelAndScore(Model model,
+                                 String outFilePath) throws Exception {
+
+        ThreadLocal<Tagger> taggers = ThreadLocal.withInitial(() -> model.createTagger(costFactor));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        Deque<Future<LabeledSentence>> pendings = new ArrayDeque<>();
+        int maxPendingSize = nThreads * queueSizePerThread;
+
+        int total = 0;
+        int correct = 0;
         try (BufferedReader in = new BufferedReader(new InputStreamReader(
                 new FileInputStream(inTestFilePath), "UTF-8"));
-             BufferedWriter out = new BufferedWriter(new FileWriter(outFilePath))) {
+             BufferedWriter out = outFilePath == null ?
+                     null : new BufferedWriter(new FileWriter(outFilePath))) {
 
+            List<String> lines;
             while(true) {
-                try {
-                    tagger.read(in);
-                } catch (EOFException eof) {
-                    if(tagger.isEmpty()) break;
+                // 1. read and hand to workers
+                lines = readSentence(in);
+                if(lines != null) {
+                    final List<String> sentence = lines;
+                    pendings.add(executor.submit(() -> label(taggers.get(), sentence)));
                 }
 
-                tagger.parse();
+                // 2. write the oldest in order
+                while(!pendings.isEmpty() &&
+                        (lines == null || pendings.size() >= maxPendingSize || pendings.peek().isDone())) {
+                    LabeledSentence labeled = pendings.poll().get();
+                    if(out != null) {
+                        out.write(labeled.result);
+                        out.newLine();
+                    }
+                    correct += labeled.correct;
+                    total += labeled.total;
+                }
 
-                out.write(tagger.asTestResultString());
-                out.newLine();
+                if(lines == null) break;
             }
+        } finally {
+            executor.shutdownNow();
         }
-    }
-
-    private void printAndCalculateScore() throws Exception {
-
-        int total = 0;
-        int correct = 0;
 
-        try (BufferedReader in = new BufferedReader(
-                new InputStreamReader(new FileInputStream(outFilePath)))) {
+        double score = (double)correct / total;
+        log.info("Score : {}", score);
+        return score;
+    }
 
-            String line = null;
-            while((line = in.readLine()) != null) {
-                line = line.trim();
-                if(line.isEmpty() || line.charAt(0) == '#') continue;
+    /**
+     * Same as {@link Tagger#read(BufferedReader)} : a sentence ends at a blank line or the end of data.
+     *
+     * @return lines of a sentence, null if no more sentences
+     */
+    private static List<String> readSentence(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        while(true) {
+            String line = in.readLine();
+            if(line == null) return lines.isEmpty() ? null : lines;
+
+            line = line.trim();
+            if(line.isEmpty()) return lines;
+
+            lines.add(line);
+        }
+    }
 
-                String[] columns = line.split("[\t ]", -1);
-                int columnLen = columns.length;
-                assert columnLen > 2;
+    private static LabeledSentence label(Tagger tagger,
+                                         List<String> lines) {
+        tagger.clear();
+        for(String line : lines) {
+            tagger.add(line);
+        }
+        tagger.parse();
 
-                if(columns[columnLen - 1].equals(columns[columnLen - 2])) correct++;
+        LabeledSentence labeled = new LabeledSentence();
+        labeled.result = tagger.asTestResultString();
+        for(int i=0; i<tagger.inputColumnListSize(); i++) {
+            String[] columns = tagger.getInputColumnsList().get(i);
+            // lines starting with '#' are comments in the result format
+            if(columns[0].startsWith("#")) continue;
 
-                total++;
-            }
+            if(columns[columns.length - 1].equals(tagger.getTagAt(tagger.getResultAt(i)))) labeled.correct++;
+            labeled.total++;
         }
-
-        log.info("Score : {}", (double)correct / total);
+        return labeled;
     }
 }
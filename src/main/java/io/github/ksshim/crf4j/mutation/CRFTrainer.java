@@ -1,31 +1,48 @@
 package io.github.ksshim.crf4j.mutation;
 
 import io.github.ksshim.crf4j.mutation.constants.Algorithm;
+import io.github.ksshim.crf4j.mutation.constants.ForwardBackward;
+import io.github.ksshim.crf4j.mutation.constants.GradientAccumulation;
+import io.github.ksshim.crf4j.mutation.constants.ModelFormat;
+import io.github.ksshim.crf4j.mutation.constants.TagScheme;
 import io.github.ksshim.crf4j.mutation.exception.OptimizationException;
 import io.github.ksshim.crf4j.mutation.exception.StopIterationException;
 import io.github.ksshim.crf4j.mutation.feature.EncodeFeatureIndex;
 import io.github.ksshim.crf4j.mutation.feature.FeatureIndex;
 import io.github.ksshim.crf4j.mutation.feature.serializer.FeatureIndexSerializer;
+import io.github.ksshim.crf4j.mutation.lattice.TransitionConstraints;
 import io.github.ksshim.crf4j.mutation.optimizer.LbfgsOptimizer;
 import io.github.ksshim.crf4j.mutation.tagger.EncodeTagger;
 import lombok.Builder;
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.BufferedReader;
-import java.io.EOFException;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Log4j2
 @Builder
 public class CRFTrainer {
 
+    // sentences of a task of reading the train data
+    private final static int READ_BATCH_SIZE = 200;
+    // weights of a block of the reduction of the threads' results
+    private final static int REDUCE_BLOCK_SIZE = 1 << 14;
+
     @Builder.Default
     private final int minFrequency = 1;
     @Builder.Default
@@ -40,6 +57,23 @@ public class CRFTrainer {
     private final int shrinkingSize = 20;
     @Builder.Default
     private final int nThreads = 3;
+    @Builder.Default
+    private final ModelFormat modelFormat = ModelFormat.SERIALIZED;
+    // if > 0, the model keeps the tags of tokens seen at least this many times, and decoding prunes the others
+    @Builder.Default
+    private final int tagDictionaryMinFrequency = 0;
+    // transitions forbidden by the tag naming scheme and explicitly, in both training and decoding
+    @Builder.Default
+    private final TagScheme tagScheme = TagScheme.NONE;
+    @Builder.Default
+    private final List<Pair<String, String>> forbiddenTransitions = Collections.emptyList();
+    // SCALED : forward-backward in probability space, same objective (within rounding) with far fewer exp()/log()
+    @Builder.Default
+    private final ForwardBackward forwardBackward = ForwardBackward.LOG;
+    // expected counts by thread : of the weights its sentences touch only (SPARSE), of all (DENSE),
+    // or SPARSE if it saves enough memory (AUTO)
+    @Builder.Default
+    private final GradientAccumulation gradientAccumulation = GradientAccumulation.AUTO;
 
     private final String inTemplateFilePath;
     private final String inTrainFilePath;
@@ -56,6 +90,12 @@ public class CRFTrainer {
         log.info("Start creating feature-index ...");
         EncodeFeatureIndex featureIndex = new EncodeFeatureIndex(nThreads);
         featureIndex.open(inTemplateFilePath, inTrainFilePath);
+        if(tagDictionaryMinFrequency > 0) {
+            featureIndex.buildTagDictionary(inTrainFilePath, tagDictionaryMinFrequency);
+            log.info("Tag dictionary : {} tokens", featureIndex.getTagDictionary().size());
+        }
+        featureIndex.setTransitionConstraints(
+                TransitionConstraints.of(featureIndex.getTagList(), tagScheme, forbiddenTransitions));
         log.info("End creating feature-index ...");
 
         // 3. read train data and create taggers.
@@ -82,7 +122,7 @@ public class CRFTrainer {
 
         // 7. save model
         log.info("Start saving model ...");
-        FeatureIndexSerializer.write(featureIndex, outModelFilePath);
+        FeatureIndexSerializer.write(featureIndex, outModelFilePath, modelFormat);
         log.info("End saving model ...");
 
     }
@@ -123,6 +163,8 @@ public class CRFTrainer {
         int all = 0;
         double diff = 0.0;
         int numNonZero = 0;
+        // merged expected counts, when the first thread's can't hold them (sparse)
+        double[] gradient;
 
         void printIterationInfo(CRFTrainingThread firstThread) {
             log.info("");
@@ -137,18 +179,6 @@ public class CRFTrainer {
         }
     }
 
-    private int doL1Regulation(int size,
-                               double[] alpha,
-                               CRFTrainingThread firstThread) {
-        int numNonZero = 0;
-        for(int i=0; i<size; i++) {
-            firstThread.incrementsObj(Math.abs(alpha[i] / cost));
-            if(alpha[i] == 0.0) continue;
-            numNonZero++;
-        }
-        return numNonZero;
-    }
-
     private void train(FeatureIndex featureIndex,
                        List<CRFTrainingThread> threads,
                        ExecutorService executor,
@@ -169,43 +199,129 @@ public class CRFTrainer {
             firstThread.incrementsObj(tmpThread);
             firstThread.incrementsNErrors(tmpThread);
             firstThread.incrementsZeroOne(tmpThread);
-            firstThread.incrementsExpected(tmpThread);
         }
 
-        // 3. do L1/L2 regulation
-        iterationInfo.numNonZero = orthant ?
-                doL1Regulation(featureIndex.getMaxId(), alpha, firstThread) :
-                doL2Regulation(featureIndex.getMaxId(), alpha, firstThread);
-
-        // 4. free some memory
-        for(int i=1; i<nThreads; i++) {
-            threads.get(i).clearExpected();
-        }
+        // 3. merge expected counts into the gradient (the first thread's counts if dense) and do L1/L2 regulation
+        if(firstThread.isSparse() && iterationInfo.gradient == null)
+            iterationInfo.gradient = new double[featureIndex.getMaxId()];
+        double[] gradient = firstThread.isSparse() ? iterationInfo.gradient : firstThread.getExpected();
+        iterationInfo.numNonZero = reduce(threads, executor, gradient, featureIndex.getMaxId(), alpha, orthant);
 
-        // 5. print iteration info
+        // 4. print iteration info
         iterationInfo.diff = (iterationInfo.iterationNum == 0 ?
                 1.0 : Math.abs(iterationInfo.oldObj - firstThread.getObj()) / iterationInfo.oldObj);
         iterationInfo.printIterationInfo(firstThread);
 
-        // 6. update values
+        // 5. update values
         iterationInfo.oldObj = firstThread.getObj();
         iterationInfo.converge = iterationInfo.diff < eta ? iterationInfo.converge + 1 : 0;
         if(iterationInfo.iterationNum > maxIterations || iterationInfo.converge == 3)
             throw new StopIterationException();
 
         if(lbfgs.optimize(featureIndex.getMaxId(), alpha, firstThread.getObj(),
-                firstThread.getExpected(), orthant, cost) <= 0) throw new OptimizationException();
+                gradient, orthant, cost) <= 0) throw new OptimizationException();
     }
 
-    private int doL2Regulation(int size,
-                               double[] alpha,
-                               CRFTrainingThread firstThread) {
+    //**********************************************************
+    // Reduction of the threads' results
+    //**********************************************************
+    /**
+     * Merges the expected counts of the threads into gradient, adds the L2 term to it and counts
+     * the non-zero weights (L1), over ranges of weights in parallel, block by block within a range
+     * so that a block of the gradient stays in cache while the threads' counts are added.
+     * Sparse threads only add the weights they touch.
+     * <p>
+     * Each weight is merged in order of threads and regularized on its own, so the gradient is the same
+     * as a serial merge, dense or sparse. The regularization term of the objective is then added weight by weight in order,
+     * same as before : it only reads the weights, and summing it by ranges would change its rounding.
+     *
+     * @return number of non-zero weights
+     */
+    private int reduce(List<CRFTrainingThread> threads,
+                       ExecutorService executor,
+                       double[] gradient,
+                       int size,
+                       double[] alpha,
+                       boolean orthant) throws Exception {
 
-        for(int i=0; i<size; i++) {
-            firstThread.incrementsObj((alpha[i] * alpha[i] / (2.0 * cost)));
-            firstThread.incrementsExpected(alpha[i] /cost, i);
+        CRFTrainingThread[] threadArray = threads.toArray(new CRFTrainingThread[0]);
+        CRFTrainingThread firstThread = threadArray[0];
+        // the first thread's counts are the gradient already if dense
+        int firstMerged = gradient == firstThread.getExpected() ? 1 : 0;
+
+        // 1. merge, regularize the gradient and count, a task by range
+        int blocks = (size + REDUCE_BLOCK_SIZE - 1) / REDUCE_BLOCK_SIZE;
+        int nTasks = Math.max(1, Math.min(nThreads, blocks));
+        List<Callable<Integer>> tasks = new ArrayList<>(nTasks);
+        for(int t=0; t<nTasks; t++) {
+            int fromBlock = (int) ((long) blocks * t / nTasks);
+            int toBlock = (int) ((long) blocks * (t + 1) / nTasks);
+            tasks.add(() -> {
+                int numNonZero = 0;
+                for(int block=fromBlock; block<toBlock; block++) {
+                    int from = block * REDUCE_BLOCK_SIZE;
+                    int to = Math.min(size, from + REDUCE_BLOCK_SIZE);
+                    if(firstMerged == 0) Arrays.fill(gradient, from, to, 0.0);
+                    for(int i=firstMerged; i<threadArray.length; i++) {
+                        threadArray[i].addExpectedTo(gradient, from, to);
+                    }
+
+                    numNonZero += orthant ?
+                            doL1Regulation(from, to, alpha) :
+                            doL2Regulation(from, to, alpha, gradient);
+                }
+                return numNonZero;
+            });
         }
-        return size;
+
+        int numNonZero = 0;
+        if(nTasks == 1) {
+            numNonZero = tasks.get(0).call();
+        } else {
+            for(Future<Integer> future : executor.invokeAll(tasks)) {
+                numNonZero += getResult(future);
+            }
+        }
+
+        // 2. regularization term of the objective
+        double obj = firstThread.getObj();
+        if(orthant) {
+            for(int i=0; i<size; i++) obj += Math.abs(alpha[i] / cost);
+        } else {
+            for(int i=0; i<size; i++) obj += (alpha[i] * alpha[i] / (2.0 * cost));
+        }
+        firstThread.setObj(obj);
+
+        return numNonZero;
+    }
+
+    /**
+     * @return number of non-zero weights in [from, to)
+     */
+    private int doL1Regulation(int from,
+                               int to,
+                               double[] alpha) {
+        int numNonZero = 0;
+        for(int i=from; i<to; i++) {
+            if(alpha[i] == 0.0) continue;
+            numNonZero++;
+        }
+        return numNonZero;
+    }
+
+    /**
+     * Adds the gradient of the L2 term of weights [from, to).
+     *
+     * @return number of weights
+     */
+    private int doL2Regulation(int from,
+                               int to,
+                               double[] alpha,
+                               double[] gradient) {
+        for(int i=from; i<to; i++) {
+            gradient[i] += alpha[i] /cost;
+        }
+        return to - from;
     }
 
     private List<CRFTrainingThread> buildThreads(int alphaLength,
@@ -218,6 +334,8 @@ public class CRFTrainer {
                             .weightSize(alphaLength)
                             .startIndex(i)
                             .nThreads(nThreads)
+                            .forwardBackward(forwardBackward)
+                            .gradientAccumulation(gradientAccumulation)
                             .taggerList(taggerList)
                             .build()
             );
@@ -229,25 +347,108 @@ public class CRFTrainer {
                                EncodeFeatureIndex featureIndex,
                                List<EncodeTagger> taggerList) throws Exception {
 
+        // sentences are read here and taggers (features) are built by the threads, batch by batch
+        ExecutorService executor = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+        if(executor != null) featureIndex.beginConcurrentBuild();
+
         try (BufferedReader in = new BufferedReader(new InputStreamReader(
                         new FileInputStream(inTrainFilePath), "UTF-8"))) {
 
-            int lineNo = 0;
+            // batches being built, in order : at most 2 per thread so that read sentences don't pile up
+            Deque<Future<List<EncodeTagger>>> futures = new ArrayDeque<>();
+            List<List<String>> batch = new ArrayList<>(READ_BATCH_SIZE);
+            int sentenceNo = 0;
             while(true) {
-                EncodeTagger tagger = new EncodeTagger();
-                tagger.open(featureIndex);
-                try {
-                    tagger.read(in);
-                } catch (EOFException eof) {
-                    if(tagger.isEmpty()) break;
+                List<String> lines = readSentence(in);
+                if(lines != null) batch.add(lines);
+
+                if(batch.size() == READ_BATCH_SIZE || (lines == null && !batch.isEmpty())) {
+                    List<List<String>> sentences = batch;
+                    int firstSentenceNo = sentenceNo;
+                    sentenceNo += sentences.size();
+                    batch = new ArrayList<>(READ_BATCH_SIZE);
+
+                    if(executor == null) {
+                        addTaggers(createTaggers(featureIndex, sentences, firstSentenceNo), taggerList);
+                    } else {
+                        futures.add(executor.submit(() -> createTaggers(featureIndex, sentences, firstSentenceNo)));
+                        if(futures.size() >= 2 * nThreads) addTaggers(futures.poll(), taggerList);
+                    }
                 }
 
-                tagger.shrink();
-                tagger.setThreadId(lineNo % nThreads);
-                taggerList.add(tagger);
+                if(lines == null) break;
+            }
 
-                if(++lineNo % 100 == 0) log.info("{} ...", lineNo);
+            while(!futures.isEmpty()) {
+                addTaggers(futures.poll(), taggerList);
             }
+        } finally {
+            if(executor != null) executor.shutdownNow();
+        }
+
+        if(executor != null) featureIndex.endConcurrentBuild(taggerList);
+    }
+
+    /**
+     * @return trimmed lines of the next sentence (empty if there is no line before the blank line), null at the end
+     */
+    private static List<String> readSentence(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        while(true) {
+            String line = in.readLine();
+            if(line == null) return lines.isEmpty() ? null : lines;
+
+            line = line.trim();
+            if(line.isEmpty()) return lines;
+
+            lines.add(line);
+        }
+    }
+
+    private List<EncodeTagger> createTaggers(EncodeFeatureIndex featureIndex,
+                                             List<List<String>> sentences,
+                                             int sentenceNo) {
+
+        TransitionConstraints constraints = featureIndex.getTransitionConstraints();
+        List<EncodeTagger> taggers = new ArrayList<>(sentences.size());
+        for(List<String> lines : sentences) {
+            EncodeTagger tagger = new EncodeTagger();
+            tagger.open(featureIndex);
+            for(String line : lines) {
+                tagger.add(line);
+            }
+
+            if(constraints != null && !constraints.isValid(tagger.getAnswerTagIndexList()))
+                throw new RuntimeException("Sentence " + (sentenceNo + 1) + " violates the transition constraints");
+
+            tagger.shrink();
+            tagger.setThreadId(sentenceNo % nThreads);
+            taggers.add(tagger);
+            sentenceNo++;
+        }
+        return taggers;
+    }
+
+    private void addTaggers(Future<List<EncodeTagger>> future,
+                            List<EncodeTagger> taggerList) throws Exception {
+        addTaggers(getResult(future), taggerList);
+    }
+
+    private void addTaggers(List<EncodeTagger> taggers,
+                            List<EncodeTagger> taggerList) {
+        taggerList.addAll(taggers);
+        log.info("{} ...", taggerList.size());
+    }
+
+    /**
+     * @return result of the task, rethrowing its runtime exception as is
+     */
+    private static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
         }
     }
 
@@ -256,6 +457,7 @@ public class CRFTrainer {
         if(cost < 0.0) throw new RuntimeException("cost must be >= 0.0");
         if(shrinkingSize < 1) throw new RuntimeException("shrinkingSize must be >= 1");
         if(nThreads <= 0) throw new RuntimeException("thread must be > 0");
+        if(tagDictionaryMinFrequency < 0) throw new RuntimeException("tagDictionaryMinFrequency must be >= 0");
     }
 
     private void printTrainInfo(List<EncodeTagger> taggerList,
@@ -270,6 +472,12 @@ public class CRFTrainer {
         log.info("Eta : {}", eta);
         log.info("Cost : {}", cost);
         log.info("Shrinking size : {}", shrinkingSize);
+        log.info("Model format : {}", modelFormat);
+        log.info("Tag dictionary min frequency : {}", tagDictionaryMinFrequency);
+        log.info("Forward-backward : {}", forwardBackward);
+        log.info("Gradient accumulation : {}", gradientAccumulation);
+        log.info("Tag scheme : {}", tagScheme);
+        log.info("Forbidden transitions : {}", forbiddenTransitions);
         log.info("");
     }
 }
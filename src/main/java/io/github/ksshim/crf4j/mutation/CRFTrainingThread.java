@@ -1,11 +1,16 @@
 package io.github.ksshim.crf4j.mutation;
 
+import io.github.ksshim.crf4j.mutation.constants.ForwardBackward;
+import io.github.ksshim.crf4j.mutation.constants.GradientAccumulation;
+import io.github.ksshim.crf4j.mutation.feature.FeatureIdListCache;
+import io.github.ksshim.crf4j.mutation.lattice.ScaledForwardBackward;
 import io.github.ksshim.crf4j.mutation.tagger.EncodeTagger;
 import lombok.Builder;
 import lombok.Data;
 import lombok.extern.log4j.Log4j2;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -14,15 +19,31 @@ import java.util.concurrent.Callable;
 @Builder
 public class CRFTrainingThread implements Callable<Integer> {
 
+    // AUTO : sparse if the sparse expected counts (with their runs and the indices of the features)
+    // take at most this ratio of the memory of the dense ones
+    private final static double SPARSE_MAX_DENSITY = 0.25;
+
     private final List<EncodeTagger> taggerList;
     private final int startIndex;
     private final int weightSize;
     private final int nThreads;
+    @Builder.Default
+    private final ForwardBackward forwardBackward = ForwardBackward.LOG;
+    @Builder.Default
+    private final GradientAccumulation gradientAccumulation = GradientAccumulation.AUTO;
 
     private int zeroOne = 0;
     private int nErrors = 0;
     private double obj = 0.0;
+    // expected counts : of all the weights (dense), or of the weights touched by the sentences of this thread (sparse),
+    // runs of weights [segmentStarts[s], segmentStarts[s] + segmentLocalStarts[s + 1] - segmentLocalStarts[s])
+    // kept at expected[segmentLocalStarts[s] ..]
     private double[] expected;
+    private boolean sparse;
+    private int[] segmentStarts;
+    private int[] segmentLocalStarts;
+    // workspace of the scaled forward-backward, reused for every sentence
+    private ScaledForwardBackward scaledForwardBackward;
 
     private void validateAndInit() {
         if(weightSize <= 0) throw new RuntimeException("wSize must be larger than zero. : " + weightSize);
@@ -31,11 +52,141 @@ public class CRFTrainingThread implements Callable<Integer> {
         nErrors = 0;
         zeroOne = 0;
 
-        if(this.expected == null) this.expected = new double[weightSize];
+        if(this.expected == null) initExpected();
+        if(forwardBackward == ForwardBackward.SCALED && scaledForwardBackward == null)
+            this.scaledForwardBackward = new ScaledForwardBackward();
 
         Arrays.fill(this.expected, 0.0);
     }
 
+    /**
+     * Allocates the expected counts, sparse or dense, and points the features of the taggers at them.
+     */
+    private void initExpected() {
+
+        // 1. weights touched by the sentences : the ids of a feature (by tag, or by pair of tags each)
+        BitSet touched = null;
+        int touchedSize = weightSize;
+        int segmentSize = 0;
+        long sparseBytes = Long.MAX_VALUE;
+        long denseBytes = 8L * weightSize;
+        if(gradientAccumulation != GradientAccumulation.DENSE) {
+            touched = touchedWeights();
+            touchedSize = touched.cardinality();
+            segmentSize = segmentSizeOf(touched);
+            sparseBytes = sparseBytesOf(touchedSize, segmentSize);
+        }
+
+        this.sparse = gradientAccumulation == GradientAccumulation.SPARSE ||
+                (gradientAccumulation == GradientAccumulation.AUTO && sparseBytes <= denseBytes * SPARSE_MAX_DENSITY);
+        if(!sparse) {
+            this.expected = new double[weightSize];
+            this.segmentStarts = null;
+            this.segmentLocalStarts = null;
+            for(int i=startIndex; i<taggerList.size(); i= i+nThreads) {
+                taggerList.get(i).getFeatureIdListCache().setExpectedIds(null);
+            }
+            return;
+        }
+
+        // 2. runs of touched weights
+        this.segmentStarts = new int[segmentSize];
+        this.segmentLocalStarts = new int[segmentSize + 1];
+        int s = 0;
+        for(int start=touched.nextSetBit(0); start>=0; s++) {
+            int end = touched.nextClearBit(start);
+            segmentStarts[s] = start;
+            segmentLocalStarts[s + 1] = segmentLocalStarts[s] + (end - start);
+            start = touched.nextSetBit(end);
+        }
+        this.expected = new double[touchedSize];
+
+        // 3. features of the taggers : ids to indices of the expected counts
+        for(int i=startIndex; i<taggerList.size(); i= i+nThreads) {
+            FeatureIdListCache featureIdListCache = taggerList.get(i).getFeatureIdListCache();
+            int[] ids = featureIdListCache.getIds();
+            int[] expectedIds = new int[featureIdListCache.idSize()];
+            for(int j=0; j<expectedIds.length; j++) {
+                expectedIds[j] = localIndexOf(ids[j]);
+            }
+            featureIdListCache.setExpectedIds(expectedIds);
+        }
+
+        log.info("Thread {} : sparse expected counts, {} of {} weights, {} bytes with the indices (dense : {} bytes)",
+                startIndex, touchedSize, weightSize, sparseBytes, denseBytes);
+    }
+
+    private static int segmentSizeOf(BitSet touched) {
+        int segmentSize = 0;
+        for(int i=touched.nextSetBit(0); i>=0; i=touched.nextSetBit(touched.nextClearBit(i))) {
+            segmentSize++;
+        }
+        return segmentSize;
+    }
+
+    /**
+     * @return bytes of the sparse expected counts : the counts, their runs and the index of every feature id
+     */
+    private long sparseBytesOf(int touchedSize,
+                               int segmentSize) {
+        long idSize = 0;
+        for(int i=startIndex; i<taggerList.size(); i= i+nThreads) {
+            idSize += taggerList.get(i).getFeatureIdListCache().idSize();
+        }
+        return 8L * touchedSize + 4L * (2 * segmentSize + 1) + 4L * idSize;
+    }
+
+    private BitSet touchedWeights() {
+        BitSet touched = new BitSet(weightSize);
+        for(int i=startIndex; i<taggerList.size(); i= i+nThreads) {
+            EncodeTagger tagger = taggerList.get(i);
+            FeatureIdListCache featureIdListCache = tagger.getFeatureIdListCache();
+            int[] ids = featureIdListCache.getIds();
+            int ySize = tagger.getTagListSize();
+            int nodeListSize = tagger.inputColumnListSize();
+
+            // node lists first, then path lists
+            for(int list=0; list<featureIdListCache.size(); list++) {
+                int size = list < nodeListSize ? ySize : ySize * ySize;
+                for(int j=featureIdListCache.offsetOf(list); j<featureIdListCache.offsetOf(list + 1); j++) {
+                    touched.set(ids[j], ids[j] + size);
+                }
+            }
+        }
+        return touched;
+    }
+
+    /**
+     * @return index in expected of weight i (touched)
+     */
+    private int localIndexOf(int i) {
+        int s = Arrays.binarySearch(segmentStarts, i);
+        if(s < 0) s = -s - 2;
+        return segmentLocalStarts[s] + (i - segmentStarts[s]);
+    }
+
+    /**
+     * Adds the expected counts of weights [from, to) to target (indexed by weight).
+     */
+    public void addExpectedTo(double[] target, int from, int to) {
+        if(!sparse) {
+            for(int i=from; i<to; i++)
+                target[i] += expected[i];
+            return;
+        }
+
+        // first run which ends after from
+        int s = Arrays.binarySearch(segmentStarts, from);
+        if(s < 0) s = Math.max(0, -s - 2);
+        for(; s<segmentStarts.length && segmentStarts[s] < to; s++) {
+            int start = segmentStarts[s];
+            int localStart = segmentLocalStarts[s] - start;
+            int end = Math.min(to, start + segmentLocalStarts[s + 1] - segmentLocalStarts[s]);
+            for(int i=Math.max(from, start); i<end; i++)
+                target[i] += expected[localStart + i];
+        }
+    }
+
     public void incrementsObj(double addObj) {
         obj += addObj;
     }
@@ -52,19 +203,6 @@ public class CRFTrainingThread implements Callable<Integer> {
         zeroOne += thread.getZeroOne();
     }
 
-    public void incrementsExpected(double addExpected, int index) {
-        expected[index] += addExpected;
-    }
-
-    public void incrementsExpected(CRFTrainingThread thread) {
-        for(int i=0; i<weightSize; i++)
-            expected[i] += thread.expected[i];
-    }
-
-    public void clearExpected() {
-        this.expected = null;
-    }
-
     @Override
     public Integer call() throws Exception {
 
@@ -75,7 +213,7 @@ public class CRFTrainingThread implements Callable<Integer> {
                 EncodeTagger tagger = taggerList.get(i);
 
                 // 1. calculate expectation
-                obj += tagger.gradient(expected);
+                obj += tagger.gradient(expected, scaledForwardBackward);
                 // 2. evaluation
                 int tmpNErrors = tagger.eval();
                 tagger.clearNode();
@@ -4,6 +4,10 @@ public class CommonConstants {
 
     public final static int VERSION_OF_MODEL = 100;
 
+    // "CRFM"
+    public final static int MAGIC_OF_BINARY_MODEL = 0x4352464D;
+    public final static int VERSION_OF_BINARY_MODEL = 3;
+
     public final static char TEMPLATE_UNI_GRAM = 'U';
     public final static char TEMPLATE_BI_GRAM = 'B';
 }
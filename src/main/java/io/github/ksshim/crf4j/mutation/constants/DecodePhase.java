@@ -0,0 +1,15 @@
+package io.github.ksshim.crf4j.mutation.constants;
+
+public enum DecodePhase {
+
+    // feature ids of nodes and paths
+    FEATURES,
+    // nodes (candidate tags) and paths (allowed transitions) of the lattice
+    LATTICE,
+    // node and path costs
+    COSTS,
+    VITERBI,
+    // marginal probabilities (marginal mode only)
+    MARGINALS,
+    NBEST
+}
@@ -0,0 +1,9 @@
+package io.github.ksshim.crf4j.mutation.constants;
+
+public enum ForwardBackward {
+
+    // log-space alpha/beta (log-sum-exp per path), same as CRF++
+    LOG,
+    // probability-space alpha/beta normalized at every position, exp() once per node/path
+    SCALED
+}
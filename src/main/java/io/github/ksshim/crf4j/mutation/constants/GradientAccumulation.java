@@ -0,0 +1,12 @@
+package io.github.ksshim.crf4j.mutation.constants;
+
+public enum GradientAccumulation {
+
+    // sparse for a thread whose sparse counts (with the indices of its features) take a small part
+    // of the memory of the dense ones, dense otherwise
+    AUTO,
+    // expected counts of all the weights by thread
+    DENSE,
+    // expected counts of the weights touched by the sentences of the thread only
+    SPARSE
+}
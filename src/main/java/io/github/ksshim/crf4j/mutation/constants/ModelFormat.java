@@ -0,0 +1,9 @@
+package io.github.ksshim.crf4j.mutation.constants;
+
+public enum ModelFormat {
+
+    // java object serialization, read fully into the heap
+    SERIALIZED,
+    // sectioned binary format, trie and weights are memory-mapped when read
+    BINARY
+}
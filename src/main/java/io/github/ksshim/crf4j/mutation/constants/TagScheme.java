@@ -0,0 +1,8 @@
+package io.github.ksshim.crf4j.mutation.constants;
+
+public enum TagScheme {
+
+    NONE,
+    BIO,
+    BIOES
+}
@@ -0,0 +1,9 @@
+package io.github.ksshim.crf4j.mutation.constants;
+
+public enum WeightType {
+
+    DOUBLE,
+    FLOAT32,
+    FLOAT16,
+    INT8
+}
@@ -1,17 +1,108 @@
 package io.github.ksshim.crf4j.mutation.feature;
 
+import io.github.ksshim.crf4j.mutation.metrics.DecodeListener;
+import io.github.ksshim.crf4j.mutation.tagger.Tagger;
 import io.github.ksshim.crf4j.mutation.trie.DoubleArrayTrie;
 import lombok.Data;
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
 
 @Log4j2
 @Data
 public class DecodeFeatureIndex extends FeatureIndex {
 
     private DoubleArrayTrie dat;
+    // trie state after each template's literal prefix (indexed by template ordinal)
+    private int[] prefixStates;
+    // optional, shared by all taggers of this feature-index
+    private volatile FeatureIdCache featureIdCache;
+    // optional, measures sentences decoded by all taggers of this feature-index
+    private volatile DecodeListener decodeListener;
 
     @Override
     protected int getID(String key) {
         return dat.exactMatchSearch(key);
     }
+
+    @Override
+    public void compileTemplates() {
+        super.compileTemplates();
+        if(dat == null) return;
+
+        prefixStates = new int[compiledUniGramTemplates.length + compiledBiGramTemplates.length];
+        for(FeatureTemplate template : compiledUniGramTemplates) {
+            prefixStates[template.getOrdinal()] = dat.transition(dat.rootState(), template.getPrefix());
+        }
+        for(FeatureTemplate template : compiledBiGramTemplates) {
+            prefixStates[template.getOrdinal()] = dat.transition(dat.rootState(), template.getPrefix());
+        }
+    }
+
+    /**
+     * Looks up the feature-id cache (if any) first, then searches the trie.
+     */
+    @Override
+    protected int getID(FeatureTemplate template,
+                        int cur,
+                        Tagger tagger) {
+        FeatureIdCache cache = featureIdCache;
+        if(cache == null || prefixStates == null) return searchID(template, cur, tagger);
+
+        // 1. window of column values referenced by the template
+        int size = template.size();
+        String[] window = tagger.getWindowBuffer(size);
+        int[] rows = template.getRows();
+        int[] cols = template.getCols();
+        for(int i=0; i<size; i++) {
+            window[i] = getIndex(rows[i], cols[i], cur, tagger);
+        }
+
+        // 2. cache, and then trie
+        int hash = FeatureIdCache.hashOf(template.getOrdinal(), window, size);
+        int id = cache.get(hash, template.getOrdinal(), window, size);
+        if(id == FeatureIdCache.NOT_CACHED) {
+            id = StringUtils.isBlank(template.getPrefix()) ?
+                    super.getID(template, cur, tagger) : searchID(template, window);
+            cache.put(hash, template.getOrdinal(), window, size, id);
+        }
+        return id;
+    }
+
+    /**
+     * Walks the trie from the state cached for the template's prefix through
+     * the referenced columns and suffixes, without building the feature string.
+     */
+    private int searchID(FeatureTemplate template,
+                         int cur,
+                         Tagger tagger) {
+        if(prefixStates == null || StringUtils.isBlank(template.getPrefix()))
+            return super.getID(template, cur, tagger);
+
+        int state = prefixStates[template.getOrdinal()];
+        int[] rows = template.getRows();
+        int[] cols = template.getCols();
+        String[] suffixes = template.getSuffixes();
+        for(int i=0; i<rows.length && state >= 0; i++) {
+            String r = getIndex(rows[i], cols[i], cur, tagger);
+            if(r != null) state = dat.transition(state, r);
+            state = dat.transition(state, suffixes[i]);
+        }
+
+        return dat.valueOf(state);
+    }
+
+    /**
+     * Same as {@link #searchID(FeatureTemplate, int, Tagger)} with the window values already taken.
+     */
+    private int searchID(FeatureTemplate template,
+                         String[] window) {
+        int state = prefixStates[template.getOrdinal()];
+        String[] suffixes = template.getSuffixes();
+        for(int i=0; i<suffixes.length && state >= 0; i++) {
+            if(window[i] != null) state = dat.transition(state, window[i]);
+            state = dat.transition(state, suffixes[i]);
+        }
+
+        return dat.valueOf(state);
+    }
 }
@@ -10,41 +10,119 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Log4j2
 @Data
 public class EncodeFeatureIndex extends FeatureIndex {
 
-    private Map<String, Pair<Integer, Integer>> dic;
+    private FeatureDictionary dic;
+    // while taggers build their features in parallel : temporary ids (0, 1, ..) by key, null otherwise
+    private ConcurrentHashMap<String, Integer> concurrentDic;
+    private AtomicInteger concurrentDicSize;
 
     public EncodeFeatureIndex(int n) {
         super(n);
-        this.dic = new HashMap<>();
+        this.dic = new FeatureDictionary();
     }
 
     public List<Pair<String, Integer>> getDicAsPairList() {
-        List<Pair<String, Integer>> pairList = new LinkedList<>();
-        for(String key : dic.keySet()) {
-            pairList.add(Pair.of(key, dic.get(key).getKey()));
+        List<Pair<String, Integer>> pairList = new ArrayList<>(dic.size());
+        for(int entry=0; entry<dic.size(); entry++) {
+            pairList.add(Pair.of(dic.getKey(entry), dic.getId(entry)));
         }
         return pairList;
     }
 
     @Override
     protected int getID(String key) {
+        return getID((CharSequence) key);
+    }
+
+    @Override
+    protected int getID(CharSequence key) {
+
+        if(concurrentDic != null) return getTemporaryID(key.toString());
+
+        int entry = dic.find(key);
+        if(entry != -1) {
+            dic.incrementFrequency(entry);
+            return dic.getId(entry);
+        }
+
+        int n = maxId;
+        dic.add(key, n, 1);
+        maxId += idSizeOf(key.charAt(0));
+        return n;
+    }
+
+    /**
+     * @return number of weights of a feature : one by tag (unigram) or by pair of tags (bigram)
+     */
+    private int idSizeOf(char templateType) {
+        return templateType == CommonConstants.TEMPLATE_UNI_GRAM ? tagList.size() : tagList.size() * tagList.size();
+    }
+
+    //**********************************************************
+    // Concurrent build
+    //**********************************************************
+    /**
+     * Lets taggers build their features in parallel, until {@link #endConcurrentBuild(List)} :
+     * features get temporary ids from a concurrent dictionary instead of ids and frequencies.
+     */
+    public void beginConcurrentBuild() {
+        if(!dic.isEmpty()) throw new RuntimeException("Features are already built : " + dic.size());
+
+        this.concurrentDic = new ConcurrentHashMap<>();
+        this.concurrentDicSize = new AtomicInteger();
+    }
 
-        if(!dic.containsKey(key)) {
-            dic.put(key, Pair.of(maxId, 1));
-            int n = maxId;
-            maxId += (key.charAt(0) == CommonConstants.TEMPLATE_UNI_GRAM ?
-                    tagList.size() : tagList.size() * tagList.size());
-            return n;
-        } else {
-            Pair<Integer, Integer> pair = dic.get(key);
-            int k = pair.getKey();
-            int oldVal = pair.getValue();
-            dic.put(key, Pair.of(k, oldVal + 1));
-            return k;
+    private int getTemporaryID(String key) {
+        Integer id = concurrentDic.get(key);
+        if(id != null) return id;
+
+        return concurrentDic.computeIfAbsent(key, k -> concurrentDicSize.getAndIncrement());
+    }
+
+    /**
+     * Assigns ids in order of first occurrence in the taggers (in order), counts frequencies
+     * and rewrites the features of the taggers, so that ids and frequencies are the same
+     * as if the taggers had built their features one after another.
+     *
+     * @param taggerList all taggers which built their features since {@link #beginConcurrentBuild()}, in order
+     */
+    public void endConcurrentBuild(List<EncodeTagger> taggerList) {
+
+        // 1. keys by temporary id
+        String[] keys = new String[concurrentDicSize.get()];
+        for(Map.Entry<String, Integer> entry : concurrentDic.entrySet()) {
+            keys[entry.getValue()] = entry.getKey();
+        }
+        this.concurrentDic = null;
+        this.concurrentDicSize = null;
+
+        // 2. assign ids, count and rewrite
+        int[] newIds = new int[keys.length];
+        int[] freqs = new int[keys.length];
+        Arrays.fill(newIds, -1);
+        for(EncodeTagger tagger : taggerList) {
+            FeatureIdListCache featureIdListCache = tagger.getFeatureIdListCache();
+            int[] featureIds = featureIdListCache.getIds();
+            for(int i=0; i<featureIdListCache.idSize(); i++) {
+                int id = featureIds[i];
+                if(newIds[id] == -1) {
+                    newIds[id] = maxId;
+                    maxId += idSizeOf(keys[id].charAt(0));
+                }
+                freqs[id]++;
+                featureIds[i] = newIds[id];
+            }
+        }
+
+        // 3. dictionary
+        for(int id=0; id<keys.length; id++) {
+            dic.add(keys[id], newIds[id], freqs[id]);
         }
     }
 
@@ -71,6 +149,7 @@ public class EncodeFeatureIndex extends FeatureIndex {
             }
 
             templates = makeTemplates(uniGramTemplates, biGramTemplates);
+            compileTemplates();
         }
     }
 
@@ -116,38 +195,90 @@ public class EncodeFeatureIndex extends FeatureIndex {
         openTagSet(inTrainFilePath);
     }
 
+    /**
+     * Records the tags every token (first column) is seen with in the train data.
+     * Tokens seen less than minFrequency times are left out, so that all tags are candidates for them.
+     */
+    public void buildTagDictionary(String inTrainFilePath,
+                                   int minFrequency) throws Exception {
+
+        // 1. count tags by token
+        Map<String, int[]> tagCounts = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(inTrainFilePath), "UTF-8"))) {
+
+            String line = null;
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty()) continue;
+
+                char firstChar = line.charAt(0);
+                if(firstChar == '\0' || firstChar == ' ' ||
+                        firstChar == '\t') continue;
+
+                String[] cols = line.split("[\t ]", -1);
+                int[] counts = tagCounts.computeIfAbsent(cols[0], k -> new int[tagList.size()]);
+                counts[tagList.indexOf(cols[cols.length - 1])]++;
+            }
+        }
+
+        // 2. keep tokens seen enough
+        Map<String, int[]> newTagDictionary = new HashMap<>();
+        for(Map.Entry<String, int[]> entry : tagCounts.entrySet()) {
+            int[] counts = entry.getValue();
+            int freq = 0;
+            int tagSize = 0;
+            for(int count : counts) {
+                freq += count;
+                if(count > 0) tagSize++;
+            }
+            if(freq < minFrequency || tagSize == tagList.size()) continue;
+
+            int[] tags = new int[tagSize];
+            for(int y=0, i=0; y<counts.length; y++) {
+                if(counts[y] > 0) tags[i++] = y;
+            }
+            newTagDictionary.put(entry.getKey(), tags);
+        }
+
+        this.tagDictionary = newTagDictionary;
+    }
+
     public void shrinkFeatureBy(int minFrequency,
                                 List<EncodeTagger> taggerList) {
 
         if(minFrequency <= 1) return;
 
         int newMaxId = 0;
-        Map<Integer, Integer> oldId2NewIdMap = new HashMap<>();
-        Map<String, Pair<Integer, Integer>> newDic = new HashMap<>();
-
-        List<String> sortedKeyList = new LinkedList<>(dic.keySet());
-        Collections.sort(sortedKeyList);
+        // new id by old id, -1 if dropped
+        int[] oldId2NewId = new int[maxId];
+        Arrays.fill(oldId2NewId, -1);
+        FeatureDictionary newDic = new FeatureDictionary();
+
+        Integer[] sortedEntries = new Integer[dic.size()];
+        for(int entry=0; entry<sortedEntries.length; entry++) {
+            sortedEntries[entry] = entry;
+        }
+        Arrays.sort(sortedEntries, dic::compareKeys);
 
         // 1. assign new feature ids
-        for(String key : sortedKeyList) {
-            Pair<Integer, Integer> featureFreq = dic.get(key);
-            int freq = featureFreq.getValue();
+        for(int entry : sortedEntries) {
+            int freq = dic.getFrequency(entry);
             if(freq < minFrequency) continue;
 
-            int oldId = featureFreq.getKey();
-            oldId2NewIdMap.put(oldId, newMaxId);
-            newDic.put(key, Pair.of(newMaxId, freq));
-            newMaxId += (key.charAt(0) == CommonConstants.TEMPLATE_UNI_GRAM ? tagList.size() : tagList.size() * tagList.size());
+            int oldId = dic.getId(entry);
+            oldId2NewId[oldId] = newMaxId;
+            newDic.add(dic.getKey(entry), newMaxId, freq);
+            newMaxId += idSizeOf(dic.getFirstChar(entry));
         }
 
         // 2. update feature cache
         for(EncodeTagger tagger : taggerList) {
-            tagger.updateFeatureCache(oldId2NewIdMap);
+            tagger.updateFeatureCache(oldId2NewId);
         }
 
         // 3. change value and reference
         this.maxId = newMaxId;
-        this.dic.clear();
         this.dic = newDic;
     }
 }
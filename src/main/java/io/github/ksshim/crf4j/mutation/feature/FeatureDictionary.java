@@ -0,0 +1,183 @@
+package io.github.ksshim.crf4j.mutation.feature;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary of features for training, by open addressing (linear probing).
+ * <p>
+ * Keys are packed one after another into a char arena; hashes, ids and frequencies are int arrays
+ * by entry (entries are numbered in order of addition), so that counting a known feature allocates nothing.
+ * A feature takes about 30 bytes plus 2 bytes per char, against about 130 plus 2 per char
+ * in a HashMap of String to Pair.
+ * <p>
+ * Keys are compared by chars (UTF-16), same as {@link String#equals(Object)}. Not thread-safe.
+ */
+public class FeatureDictionary {
+
+    private final static int INITIAL_CAPACITY = 1 << 10;
+    // max ratio of used slots
+    private final static float LOAD_FACTOR = 0.5f;
+
+    private int size;
+    // key of entry e is arena[keyOffsets[e] .. keyOffsets[e + 1])
+    private char[] arena;
+    private int[] keyOffsets;
+    private int[] hashes;
+    private int[] ids;
+    private int[] frequencies;
+    // entry + 1 by slot, 0 if empty
+    private int[] slots;
+
+    public FeatureDictionary() {
+        this.arena = new char[INITIAL_CAPACITY * 8];
+        this.keyOffsets = new int[INITIAL_CAPACITY + 1];
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.ids = new int[INITIAL_CAPACITY];
+        this.frequencies = new int[INITIAL_CAPACITY];
+        this.slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private static int hashOf(CharSequence key) {
+        // same as String.hashCode()
+        int h = 0;
+        for(int i=0; i<key.length(); i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        return h;
+    }
+
+    private int slotOf(int hash) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (slots.length - 1);
+    }
+
+    private boolean keyEquals(int entry, CharSequence key) {
+        int offset = keyOffsets[entry];
+        int length = keyOffsets[entry + 1] - offset;
+        if(length != key.length()) return false;
+
+        for(int i=0; i<length; i++) {
+            if(arena[offset + i] != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return entry of the key, -1 if absent
+     */
+    public int find(CharSequence key) {
+        int hash = hashOf(key);
+        for(int slot = slotOf(hash); ; slot = (slot + 1) & (slots.length - 1)) {
+            int entry = slots[slot] - 1;
+            if(entry == -1) return -1;
+            if(hashes[entry] == hash && keyEquals(entry, key)) return entry;
+        }
+    }
+
+    /**
+     * Adds an absent key.
+     *
+     * @return entry of the key
+     */
+    public int add(CharSequence key,
+                   int id,
+                   int frequency) {
+        int entry = size;
+        ensureEntryCapacity(entry + 1);
+        ensureArenaCapacity((long) keyOffsets[entry] + key.length());
+
+        int offset = keyOffsets[entry];
+        for(int i=0; i<key.length(); i++) {
+            arena[offset + i] = key.charAt(i);
+        }
+        keyOffsets[entry + 1] = offset + key.length();
+        hashes[entry] = hashOf(key);
+        ids[entry] = id;
+        frequencies[entry] = frequency;
+        size++;
+
+        if(size > slots.length * LOAD_FACTOR) rehash(slots.length * 2);
+        else insertSlot(entry);
+        return entry;
+    }
+
+    private void insertSlot(int entry) {
+        int slot = slotOf(hashes[entry]);
+        while(slots[slot] != 0) {
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        slots[slot] = entry + 1;
+    }
+
+    private void rehash(int slotSize) {
+        this.slots = new int[slotSize];
+        for(int entry=0; entry<size; entry++) {
+            insertSlot(entry);
+        }
+    }
+
+    private void ensureEntryCapacity(int capacity) {
+        if(ids.length >= capacity) return;
+
+        int newCapacity = Math.max(capacity, ids.length * 2);
+        keyOffsets = Arrays.copyOf(keyOffsets, newCapacity + 1);
+        hashes = Arrays.copyOf(hashes, newCapacity);
+        ids = Arrays.copyOf(ids, newCapacity);
+        frequencies = Arrays.copyOf(frequencies, newCapacity);
+    }
+
+    private void ensureArenaCapacity(long capacity) {
+        if(arena.length >= capacity) return;
+        if(capacity > Integer.MAX_VALUE - 8) throw new RuntimeException("Too many chars of features : " + capacity);
+
+        long newCapacity = Math.min(Math.max(capacity, arena.length + (arena.length >> 1)), Integer.MAX_VALUE - 8);
+        arena = Arrays.copyOf(arena, (int) newCapacity);
+    }
+
+    //**********************************************************
+    // Entries
+    //**********************************************************
+    public String getKey(int entry) {
+        return new String(arena, keyOffsets[entry], keyOffsets[entry + 1] - keyOffsets[entry]);
+    }
+
+    public char getFirstChar(int entry) {
+        return arena[keyOffsets[entry]];
+    }
+
+    /**
+     * Compares keys of two entries, same as {@link String#compareTo(String)}.
+     */
+    public int compareKeys(int entry1, int entry2) {
+        int offset1 = keyOffsets[entry1];
+        int offset2 = keyOffsets[entry2];
+        int length1 = keyOffsets[entry1 + 1] - offset1;
+        int length2 = keyOffsets[entry2 + 1] - offset2;
+        for(int i=0, length = Math.min(length1, length2); i<length; i++) {
+            char c1 = arena[offset1 + i];
+            char c2 = arena[offset2 + i];
+            if(c1 != c2) return c1 - c2;
+        }
+        return length1 - length2;
+    }
+
+    public int getId(int entry) {
+        return ids[entry];
+    }
+
+    public int getFrequency(int entry) {
+        return frequencies[entry];
+    }
+
+    public void incrementFrequency(int entry) {
+        frequencies[entry]++;
+    }
+}
@@ -0,0 +1,102 @@
+package io.github.ksshim.crf4j.mutation.feature;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of resolved feature ids by (template, window of column values), including -1
+ * for features not in the model, so that a repeated window skips building the feature string
+ * and searching the trie.
+ * <p>
+ * It is a direct-mapped table : an entry may only live in the slot of its hash and replaces
+ * whatever was there. Entries are immutable, so the table can be shared by threads without locking;
+ * a thread may miss an entry just stored by another one, which only costs a lookup.
+ */
+public class FeatureIdCache {
+
+    final static int NOT_CACHED = -2;
+
+    private final Entry[] table;
+    private final int mask;
+
+    private static class Entry {
+        final int hash;
+        final int ordinal;
+        final String[] window;
+        final int id;
+
+        Entry(int hash, int ordinal, String[] window, int id) {
+            this.hash = hash;
+            this.ordinal = ordinal;
+            this.window = window;
+            this.id = id;
+        }
+    }
+
+    /**
+     * @param maxEntries max number of entries, rounded up to a power of 2
+     */
+    public FeatureIdCache(int maxEntries) {
+        if(maxEntries <= 0 || maxEntries > (1 << 30)) throw new RuntimeException("maxEntries must be in (0, 2^30]");
+
+        int size = Integer.highestOneBit(maxEntries);
+        if(size < maxEntries) size <<= 1;
+
+        this.table = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    public int size() {
+        return table.length;
+    }
+
+    /**
+     * @return hash of the template (by ordinal) and the first size values of window
+     */
+    static int hashOf(int ordinal,
+                      String[] window,
+                      int size) {
+        int hash = ordinal;
+        for(int i=0; i<size; i++) {
+            hash = 31 * hash + (window[i] == null ? 0 : window[i].hashCode());
+        }
+        return hash;
+    }
+
+    /**
+     * @return feature id (-1 if not in the model) of the template and window, NOT_CACHED if not cached
+     */
+    int get(int hash,
+            int ordinal,
+            String[] window,
+            int size) {
+        Entry entry = table[slotOf(hash)];
+        if(entry == null || entry.hash != hash || entry.ordinal != ordinal) return NOT_CACHED;
+
+        for(int i=0; i<size; i++) {
+            String value = window[i];
+            if(value == null ? entry.window[i] != null : !value.equals(entry.window[i])) return NOT_CACHED;
+        }
+        return entry.id;
+    }
+
+    void put(int hash,
+             int ordinal,
+             String[] window,
+             int size,
+             int id) {
+        table[slotOf(hash)] = new Entry(hash, ordinal, Arrays.copyOf(window, size), id);
+    }
+
+    public void clear() {
+        for(int i=0; i<table.length; i++) {
+            table[i] = null;
+        }
+    }
+
+    private int slotOf(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash & mask;
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.ksshim.crf4j.mutation.feature;
+
+import java.util.Arrays;
+
+/**
+ * Feature id lists of a sentence (a list by node position, then by path position), stored back to back
+ * in one int array : list i is ids[offsetOf(i) .. offsetOf(i + 1)).
+ * <p>
+ * Nodes and paths refer to their slice of the array, which stays valid until the cache is changed.
+ * <p>
+ * For training, the ids may have a parallel array of indices of the expected counts of the features,
+ * when those are not kept by id (sparse gradient accumulation). Not thread-safe.
+ */
+public class FeatureIdListCache {
+
+    private final static int INITIAL_LIST_CAPACITY = 16;
+    private final static int INITIAL_ID_CAPACITY = 64;
+
+    private int[] ids;
+    private int idSize;
+    // offsets[i] : start of list i, offsets[listSize] : end of the last list (and start of the open one)
+    private int[] offsets;
+    private int listSize;
+    // index of the expected counts by id, null if it is the id itself
+    private int[] expectedIds;
+
+    public FeatureIdListCache() {
+        this.ids = new int[INITIAL_ID_CAPACITY];
+        this.offsets = new int[INITIAL_LIST_CAPACITY + 1];
+    }
+
+    /**
+     * @return number of (closed) lists
+     */
+    public int size() {
+        return listSize;
+    }
+
+    public boolean isEmpty() {
+        return listSize == 0;
+    }
+
+    /**
+     * @return number of ids of the (closed) lists
+     */
+    public int idSize() {
+        return offsets[listSize];
+    }
+
+    /**
+     * @return the ids, valid until the next change
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @return indices of the expected counts of the features, parallel to the ids
+     */
+    public int[] getExpectedIds() {
+        return expectedIds != null ? expectedIds : ids;
+    }
+
+    /**
+     * @param expectedIds indices of the expected counts of the features, parallel to the ids
+     *                    (at least idSize() long), null to use the ids themselves
+     */
+    public void setExpectedIds(int[] expectedIds) {
+        if(expectedIds != null && expectedIds.length < idSize())
+            throw new RuntimeException("expectedIds is smaller than the ids : " + expectedIds.length);
+
+        this.expectedIds = expectedIds;
+    }
+
+    public int offsetOf(int list) {
+        return offsets[list];
+    }
+
+    public int listSizeAt(int list) {
+        return offsets[list + 1] - offsets[list];
+    }
+
+    /**
+     * Appends an id to the open list.
+     */
+    public void add(int id) {
+        if(idSize == ids.length) ids = Arrays.copyOf(ids, ids.length * 2);
+        ids[idSize++] = id;
+    }
+
+    /**
+     * Closes the open list. The next id added starts a new one.
+     */
+    public void endList() {
+        if(listSize + 1 == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[++listSize] = idSize;
+    }
+
+    /**
+     * Makes room for listCapacity more lists of idCapacity ids in all.
+     */
+    public void ensureCapacity(int listCapacity,
+                               int idCapacity) {
+        if(listSize + listCapacity + 1 > offsets.length) offsets = Arrays.copyOf(offsets, listSize + listCapacity + 1);
+        if(idSize + idCapacity > ids.length) ids = Arrays.copyOf(ids, idSize + idCapacity);
+    }
+
+    /**
+     * Frees the unused capacity.
+     */
+    public void trimToSize() {
+        if(ids.length > idSize) ids = Arrays.copyOf(ids, idSize);
+        if(offsets.length > listSize + 1) offsets = Arrays.copyOf(offsets, listSize + 1);
+    }
+
+    /**
+     * Replaces every id by newIds[id] and drops it if that is -1, in place.
+     */
+    public void remap(int[] newIds) {
+        int to = 0;
+        int from = 0;
+        for(int list=0; list<listSize; list++) {
+            int end = offsets[list + 1];
+            offsets[list] = to;
+            for(; from<end; from++) {
+                int newId = newIds[ids[from]];
+                if(newId == -1) continue;
+
+                ids[to++] = newId;
+            }
+        }
+        offsets[listSize] = to;
+        idSize = to;
+        expectedIds = null;
+    }
+
+    public void clear() {
+        idSize = 0;
+        listSize = 0;
+        expectedIds = null;
+    }
+}
@@ -1,7 +1,11 @@
 package io.github.ksshim.crf4j.mutation.feature;
 
+import io.github.ksshim.crf4j.mutation.constants.WeightType;
+import io.github.ksshim.crf4j.mutation.feature.quantizer.HalfFloat;
+import io.github.ksshim.crf4j.mutation.feature.serializer.MappedDoubles;
 import io.github.ksshim.crf4j.mutation.lattice.Node;
 import io.github.ksshim.crf4j.mutation.lattice.Path;
+import io.github.ksshim.crf4j.mutation.lattice.TransitionConstraints;
 import io.github.ksshim.crf4j.mutation.tagger.Tagger;
 import lombok.Data;
 import lombok.extern.log4j.Log4j2;
@@ -11,6 +15,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 @Log4j2
 @Data
@@ -26,7 +31,16 @@ public abstract class FeatureIndex {
 
     protected int maxId;
     protected double[] alpha;
+    // weights of a memory-mapped model (alpha is null then)
+    protected MappedDoubles alphaMapped;
     protected float[] alphaFloat;
+    protected short[] alphaHalf;
+    protected byte[] alphaByte;
+    // int8 : weights of the template (by ordinal) are in [templateIdStarts[o], templateIdStarts[o+1])
+    // and scaled by templateScales[o]
+    protected int[] templateIdStarts;
+    protected float[] templateScales;
+    protected WeightType weightType = WeightType.DOUBLE;
     protected double costFactor = 1.0;
 
     protected int inputColumnSize;
@@ -37,8 +51,14 @@ public abstract class FeatureIndex {
     protected List<String> uniGramTemplates;
     protected List<String> biGramTemplates;
     protected String templates;
+    protected FeatureTemplate[] compiledUniGramTemplates;
+    protected FeatureTemplate[] compiledBiGramTemplates;
 
     protected List<String> tagList;
+    // optional, candidate tags (ascending indexes) by token (first column), for lattice pruning
+    protected Map<String, int[]> tagDictionary;
+    // optional, forbidden transitions and starts/ends, for both training and decoding
+    protected TransitionConstraints transitionConstraints;
     protected List<List<Path>> pathList;
     protected List<List<Node>> nodeList;
 
@@ -57,58 +77,227 @@ public abstract class FeatureIndex {
 
     protected abstract int getID(String s);
 
+    /**
+     * Same as {@link #getID(String)}, for a key being built (e.g. the feature buffer of a tagger).
+     */
+    protected int getID(CharSequence key) {
+        return getID(key.toString());
+    }
+
     public String getTagAt(int index) {
         return tagList.get(index);
     }
 
+    /**
+     * @return candidate tags (ascending) of the token at cur by the tag dictionary, null if all tags
+     */
+    public int[] getCandidateTagsAt(Tagger tagger, int cur) {
+        if(tagDictionary == null) return null;
+
+        return tagDictionary.get(tagger.x(cur, 0));
+    }
+
     //**********************************************************
     // Node cost calculation related
     //**********************************************************
-    public void calculateCost(Node node) {
-        node.setCost(0.0);
-        if (alphaFloat != null) calculateNodeCostWeighted(node);
-        else calculateNodeCost(node);
+    public void calculateCost(Node node, double costFactor) {
+        node.setCost(calculateNodeCost(node.getFeatureIds(), node.getFeatureStart(), node.getFeatureEnd(), node.getY(), costFactor));
+    }
+
+    public double calculateNodeCost(int[] featureIds, int start, int end, int y, double costFactor) {
+        switch (weightType) {
+            case FLOAT32:
+                return calculateNodeCostFloat(featureIds, start, end, y, costFactor);
+            case FLOAT16:
+                return calculateNodeCostHalf(featureIds, start, end, y, costFactor);
+            case INT8:
+                return calculateNodeCostInt8(featureIds, start, end, y, costFactor);
+            default:
+                if (alpha == null) return calculateNodeCostMapped(featureIds, start, end, y, costFactor);
+                else return calculateNodeCostPlain(featureIds, start, end, y, costFactor);
+        }
+    }
+
+    /**
+     * Costs of the node (featureIds[start..end)) at tags[from..to) (tags from..to if tags is null),
+     * into costs[offset + y]. Same as {@link #calculateNodeCost} by tag, with the int8 scales resolved
+     * once per feature instead of once per weight.
+     */
+    public void calculateNodeCosts(int[] featureIds, int start, int end,
+                                   int[] tags, int from, int to,
+                                   double costFactor, double[] costs, int offset) {
+        if(weightType != WeightType.INT8) {
+            for(int c=from; c<to; c++) {
+                int y = tags == null ? c : tags[c];
+                costs[offset + y] = calculateNodeCost(featureIds, start, end, y, costFactor);
+            }
+            return;
+        }
+
+        // costs hold the float sums, rounded after every addition as in calculateNodeCostInt8
+        for(int c=from; c<to; c++) costs[offset + (tags == null ? c : tags[c])] = 0.0f;
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            float scale = templateScales[templateOrdinalOf(featureId)];
+            for(int c=from; c<to; c++) {
+                int y = tags == null ? c : tags[c];
+                costs[offset + y] = (float) (costs[offset + y] + alphaByte[featureId + y] * scale);
+            }
+        }
+        for(int c=from; c<to; c++) costs[offset + (tags == null ? c : tags[c])] *= costFactor;
+    }
+
+    private double calculateNodeCostFloat(int[] featureIds, int start, int end, int y, double costFactor) {
+        float c = 0.0f;
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += alphaFloat[featureId + y];
+        }
+        return costFactor * c;
     }
 
-    private void calculateNodeCostWeighted(Node node) {
+    private double calculateNodeCostHalf(int[] featureIds, int start, int end, int y, double costFactor) {
         float c = 0.0f;
-        for(int i=0; node.getFVectorAt(i) != -1; i++) {
-            c += alphaFloat[node.getFVectorAt(i) + node.getY()];
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += HalfFloat.toFloat(alphaHalf[featureId + y]);
         }
-        node.setCost(costFactor * c);
+        return costFactor * c;
     }
 
-    private void calculateNodeCost(Node node) {
+    private double calculateNodeCostInt8(int[] featureIds, int start, int end, int y, double costFactor) {
+        float c = 0.0f;
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += alphaByte[featureId + y] * templateScales[templateOrdinalOf(featureId)];
+        }
+        return costFactor * c;
+    }
+
+    private double calculateNodeCostPlain(int[] featureIds, int start, int end, int y, double costFactor) {
+        double c = 0.0;
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += alpha[featureId + y];
+        }
+        return costFactor * c;
+    }
+
+    private double calculateNodeCostMapped(int[] featureIds, int start, int end, int y, double costFactor) {
         double c = 0.0;
-        for(int i=0; node.getFVectorAt(i) != -1; i++) {
-            c += alpha[node.getFVectorAt(i) + node.getY()];
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += alphaMapped.get(featureId + y);
         }
-        node.setCost(costFactor * c);
+        return costFactor * c;
+    }
+
+    private int templateOrdinalOf(int index) {
+        int low = 0;
+        int high = templateIdStarts.length - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(templateIdStarts[mid] <= index) low = mid;
+            else high = mid - 1;
+        }
+        return low;
     }
 
     //**********************************************************
     // Path cost calculation related
     //**********************************************************
-    public void calculateCost(Path path) {
-        path.setCost(0.0);
-        if(alphaFloat != null) calculatePathCostWeighted(path);
-        else calculatePathCost(path);
+    public void calculateCost(Path path, double costFactor) {
+        path.setCost(calculatePathCost(
+                path.getFeatureIds(), path.getFeatureStart(), path.getFeatureEnd(), path.getLNodeY(), path.getRNodeY(), costFactor));
     }
 
-    private void calculatePathCostWeighted(Path path) {
+    public double calculatePathCost(int[] featureIds, int start, int end, int lY, int rY, double costFactor) {
+        switch (weightType) {
+            case FLOAT32:
+                return calculatePathCostFloat(featureIds, start, end, lY, rY, costFactor);
+            case FLOAT16:
+                return calculatePathCostHalf(featureIds, start, end, lY, rY, costFactor);
+            case INT8:
+                return calculatePathCostInt8(featureIds, start, end, lY, rY, costFactor);
+            default:
+                if(alpha == null) return calculatePathCostMapped(featureIds, start, end, lY, rY, costFactor);
+                else return calculatePathCostPlain(featureIds, start, end, lY, rY, costFactor);
+        }
+    }
+
+    /**
+     * Costs of the path (featureIds[start..end)) from lTags[from..to) (tags from..to if lTags is null) to rY,
+     * into costs[offset + lY * tagListSize + rY]. Same as {@link #calculatePathCost} by tag, with the int8 scales
+     * resolved once per feature instead of once per weight.
+     */
+    public void calculatePathCosts(int[] featureIds, int start, int end,
+                                   int[] lTags, int from, int to, int rY,
+                                   double costFactor, double[] costs, int offset) {
+        int tagListSize = tagList.size();
+        if(weightType != WeightType.INT8) {
+            for(int c=from; c<to; c++) {
+                int lY = lTags == null ? c : lTags[c];
+                costs[offset + lY * tagListSize + rY] = calculatePathCost(featureIds, start, end, lY, rY, costFactor);
+            }
+            return;
+        }
+
+        // costs hold the float sums, rounded after every addition as in calculatePathCostInt8
+        for(int c=from; c<to; c++) costs[offset + (lTags == null ? c : lTags[c]) * tagListSize + rY] = 0.0f;
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            float scale = templateScales[templateOrdinalOf(featureId)];
+            for(int c=from; c<to; c++) {
+                int index = (lTags == null ? c : lTags[c]) * tagListSize + rY;
+                costs[offset + index] = (float) (costs[offset + index] + alphaByte[featureId + index] * scale);
+            }
+        }
+        for(int c=from; c<to; c++) costs[offset + (lTags == null ? c : lTags[c]) * tagListSize + rY] *= costFactor;
+    }
+
+    private double calculatePathCostFloat(int[] featureIds, int start, int end, int lY, int rY, double costFactor) {
+        float c = 0.0f;
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += alphaFloat[featureId + (lY * tagList.size()) + rY];
+        }
+        return costFactor * c;
+    }
+
+    private double calculatePathCostHalf(int[] featureIds, int start, int end, int lY, int rY, double costFactor) {
         float c = 0.0f;
-        for(int i=0; path.getFVectorAt(i) != -1; i++) {
-            c += alphaFloat[path.getFVectorAt(i) + (path.getLNodeY() * tagList.size()) + path.getRNodeY()];
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += HalfFloat.toFloat(alphaHalf[featureId + (lY * tagList.size()) + rY]);
         }
-        path.setCost(costFactor * c);
+        return costFactor * c;
     }
 
-    private void calculatePathCost(Path path) {
+    private double calculatePathCostInt8(int[] featureIds, int start, int end, int lY, int rY, double costFactor) {
         float c = 0.0f;
-        for(int i=0; path.getFVectorAt(i) != -1; i++) {
-            c += alpha[path.getFVectorAt(i) + (path.getLNodeY() * tagList.size()) + path.getRNodeY()];
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += alphaByte[featureId + (lY * tagList.size()) + rY] * templateScales[templateOrdinalOf(featureId)];
         }
-        path.setCost(costFactor * c);
+        return costFactor * c;
+    }
+
+    private double calculatePathCostPlain(int[] featureIds, int start, int end, int lY, int rY, double costFactor) {
+        float c = 0.0f;
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += alpha[featureId + (lY * tagList.size()) + rY];
+        }
+        return costFactor * c;
+    }
+
+    private double calculatePathCostMapped(int[] featureIds, int start, int end, int lY, int rY, double costFactor) {
+        float c = 0.0f;
+        for(int i=start; i<end; i++) {
+            int featureId = featureIds[i];
+            c += alphaMapped.get(featureId + (lY * tagList.size()) + rY);
+        }
+        return costFactor * c;
     }
 
     //**********************************************************
@@ -131,16 +320,29 @@ public abstract class FeatureIndex {
         return sb.toString();
     }
 
+    /**
+     * Compiles uni/bi-gram templates. Must be called whenever the template lists have changed.
+     */
+    public void compileTemplates() {
+        this.compiledUniGramTemplates = FeatureTemplate.compile(uniGramTemplates, 0);
+        this.compiledBiGramTemplates = FeatureTemplate.compile(biGramTemplates, uniGramTemplates.size());
+    }
+
     public String getIndex(String[] idxStr,
                            int cur,
                            Tagger tagger) {
-        int row = Integer.parseInt(idxStr[0]);
-        int col = Integer.parseInt(idxStr[1]);
+        return getIndex(Integer.parseInt(idxStr[0]), Integer.parseInt(idxStr[1]), cur, tagger);
+    }
+
+    public String getIndex(int row,
+                           int col,
+                           int cur,
+                           Tagger tagger) {
         int pos = row + cur;
         if(row < -EOS.length || row > EOS.length ||
                 col < 0 || col >= tagger.inputColumnListSize()) return null;
 
-        if(checkMaxXSize) maxXSize = Math.max(maxXSize, col + 1);
+        if(checkMaxXSize && col + 1 > maxXSize) updateMaxXSize(col + 1);
 
         if(pos < 0) {
             return BOS[-pos - 1];
@@ -151,97 +353,137 @@ public abstract class FeatureIndex {
         }
     }
 
+    /**
+     * Synchronized since taggers may build their features in parallel (the check before is only a shortcut).
+     */
+    private synchronized void updateMaxXSize(int xSize) {
+        maxXSize = Math.max(maxXSize, xSize);
+    }
+
     public String applyRule(String str,
                             int cur,
                             Tagger tagger,
                             StringBuilder sb) {
-        sb.setLength(0);
-        for(String tmp : str.split("%x", -1)) {
-            if(StringUtils.isBlank(tmp)) continue;
+        applyRule(FeatureTemplate.compile(str), cur, tagger, sb);
+        return sb.toString();
+    }
 
-            if(tmp.startsWith("U") || tmp.startsWith("B")) {
-                sb.append(tmp);
-                continue;
-            }
+    public void applyRule(FeatureTemplate template,
+                          int cur,
+                          Tagger tagger,
+                          StringBuilder sb) {
+        sb.setLength(0);
+        sb.append(template.getPrefix());
 
-            String[] tuple = tmp.split("]");
-            String[] idx = tuple[0].replace("[", "").split(",");
-            String r = getIndex(idx, cur, tagger);
+        int[] rows = template.getRows();
+        int[] cols = template.getCols();
+        String[] suffixes = template.getSuffixes();
+        for(int i=0; i<rows.length; i++) {
+            String r = getIndex(rows[i], cols[i], cur, tagger);
             if(r != null) sb.append(r);
-            if(tuple.length > 1) sb.append(tuple[1]);
+            sb.append(suffixes[i]);
         }
+    }
 
-        return sb.toString();
+    /**
+     * @return id of the feature built from template at cur, -1 if not exist in dictionary
+     */
+    protected int getID(FeatureTemplate template,
+                        int cur,
+                        Tagger tagger) {
+        StringBuilder sb = tagger.getFeatureBuffer();
+        applyRule(template, cur, tagger, sb);
+        if(StringUtils.isBlank(sb))
+            throw new RuntimeException("Failed to build feature from template ...");
+
+        return getID((CharSequence) sb);
     }
 
-    private void buildFeatureFromTemplate(List<Integer> featureIdList,
-                                          List<String> templates,
+    private void buildFeatureFromTemplate(FeatureIdListCache featureIdListCache,
+                                          FeatureTemplate[] templates,
                                           int curPos,
                                           Tagger tagger) {
 
-        StringBuilder sb = new StringBuilder();
-        for(String template : templates) {
-            String feature = applyRule(template, curPos, tagger, sb);
-            if(StringUtils.isBlank(feature))
-                throw new RuntimeException("Failed to build feature from template ...");
-
-            int featureId = getID(feature);
+        for(FeatureTemplate template : templates) {
+            int featureId = getID(template, curPos, tagger);
             // if not exist in dictionary then skip
             if(featureId == -1) continue;
 
-            featureIdList.add(featureId);
+            featureIdListCache.add(featureId);
         }
+        featureIdListCache.endList();
     }
 
     public void buildFeatures(Tagger tagger) {
         tagger.markFeatureIdListIndex();
 
+        // room for every feature found
+        int size = tagger.inputColumnListSize();
+        int pathSize = Math.max(0, size - 1);
+        tagger.getFeatureIdListCache().ensureCapacity(size + pathSize,
+                size * compiledUniGramTemplates.length + pathSize * compiledBiGramTemplates.length);
+
         // node
-        buildFeatures(tagger, 0, uniGramTemplates);
+        buildFeatures(tagger, 0, compiledUniGramTemplates);
         // path
-        buildFeatures(tagger, 1, biGramTemplates);
+        buildFeatures(tagger, 1, compiledBiGramTemplates);
     }
 
     private void buildFeatures(Tagger tagger,
                                int startIndex,
-                               List<String> templates) {
+                               FeatureTemplate[] templates) {
+        FeatureIdListCache featureIdListCache = tagger.getFeatureIdListCache();
         for(int cur = startIndex; cur < tagger.inputColumnListSize(); cur++) {
-            List<Integer> featureIdList = new LinkedList<>();
             //build feature from template
-            buildFeatureFromTemplate(featureIdList, templates, cur, tagger);
-
-            featureIdList.add(-1);
-            tagger.addFeatureIdList(featureIdList);
+            buildFeatureFromTemplate(featureIdListCache, templates, cur, tagger);
         }
     }
 
+    /**
+     * Appends the list of ids of the node (unigram) or path (bigram) features at cur to featureIdListCache.
+     */
+    public void buildFeaturesAt(FeatureIdListCache featureIdListCache,
+                                Tagger tagger,
+                                int cur,
+                                boolean path) {
+        buildFeatureFromTemplate(featureIdListCache, path ? compiledBiGramTemplates : compiledUniGramTemplates, cur, tagger);
+    }
+
     public void buildNodesAndPaths(Tagger tagger) {
 
         int tagListSize = tagList.size();
         int featureIdListIndex = tagger.getFeatureIdListIndex();
+        FeatureIdListCache featureIdListCache = tagger.getFeatureIdListCache();
+        int[] featureIds = featureIdListCache.getIds();
+        int[] expectedIds = featureIdListCache.getExpectedIds();
 
         // node
         for(int cur=0; cur < tagger.inputColumnListSize(); cur++) {
-            List<Integer> featureIdList = tagger.getFeatureIdListAt(featureIdListIndex++);
+            int start = featureIdListCache.offsetOf(featureIdListIndex);
+            int end = featureIdListCache.offsetOf(++featureIdListIndex);
 
             for(int i=0; i<tagListSize; i++) {
                 Node node = new Node();
                 node.setX(cur);
                 node.setY(i);
-                node.setFeatureVector(featureIdList);
+                node.setFeatures(featureIds, expectedIds, start, end);
                 tagger.setNodeAt(node, cur, i);
             }
         }
 
         // path
         for(int cur=1; cur < tagger.inputColumnListSize(); cur++) {
-            List<Integer> featureIdList = tagger.getFeatureIdListAt(featureIdListIndex++);
+            int start = featureIdListCache.offsetOf(featureIdListIndex);
+            int end = featureIdListCache.offsetOf(++featureIdListIndex);
 
             for(int i=0; i<tagListSize; i++) {
                 for(int j=0; j<tagListSize; j++) {
+                    // forbidden transition : no path
+                    if(transitionConstraints != null && !transitionConstraints.isAllowed(i, j)) continue;
+
                     Path path = new Path();
                     path.add(tagger.getNodeAt(cur-1, i), tagger.getNodeAt(cur, j));
-                    path.setFeatureVector(featureIdList);
+                    path.setFeatures(featureIds, expectedIds, start, end);
                 }
             }
         }
@@ -0,0 +1,103 @@
+package io.github.ksshim.crf4j.mutation.feature;
+
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Template (e.g. "U05:%x[-1,0]/%x[0,0]") compiled once into a literal prefix followed by
+ * (row, col) references, each of which is followed by a literal suffix.
+ * Feature strings are built from it without any parsing at labeling time.
+ */
+@Getter
+public class FeatureTemplate {
+
+    private final String template;
+    // position among all (uni-gram and then bi-gram) templates of a feature-index
+    private final int ordinal;
+    private final String prefix;
+    private final int[] rows;
+    private final int[] cols;
+    private final String[] suffixes;
+
+    private FeatureTemplate(String template,
+                            int ordinal,
+                            String prefix,
+                            int[] rows,
+                            int[] cols,
+                            String[] suffixes) {
+        this.template = template;
+        this.ordinal = ordinal;
+        this.prefix = prefix;
+        this.rows = rows;
+        this.cols = cols;
+        this.suffixes = suffixes;
+    }
+
+    public int size() {
+        return rows.length;
+    }
+
+    public static FeatureTemplate compile(String template) {
+        return compile(template, 0);
+    }
+
+    public static FeatureTemplate compile(String template, int ordinal) {
+
+        StringBuilder prefix = new StringBuilder();
+        List<int[]> indexList = new ArrayList<>();
+        List<StringBuilder> suffixList = new ArrayList<>();
+
+        for(String tmp : template.split("%x", -1)) {
+            if(StringUtils.isBlank(tmp)) continue;
+
+            // literal
+            if(tmp.startsWith("U") || tmp.startsWith("B")) {
+                if(suffixList.isEmpty()) prefix.append(tmp);
+                else suffixList.get(suffixList.size() - 1).append(tmp);
+                continue;
+            }
+
+            // [row,col] + suffix
+            String[] tuple = tmp.split("]");
+            String[] idx = tuple[0].replace("[", "").split(",");
+            if(idx.length < 2) throw new RuntimeException("Invalid template : " + template);
+
+            try {
+                indexList.add(new int[] {Integer.parseInt(idx[0]), Integer.parseInt(idx[1])});
+            } catch (NumberFormatException nfe) {
+                throw new RuntimeException("Invalid template : " + template, nfe);
+            }
+            suffixList.add(new StringBuilder(tuple.length > 1 ? tuple[1] : ""));
+        }
+
+        int size = indexList.size();
+        int[] rows = new int[size];
+        int[] cols = new int[size];
+        String[] suffixes = new String[size];
+        for(int i=0; i<size; i++) {
+            rows[i] = indexList.get(i)[0];
+            cols[i] = indexList.get(i)[1];
+            suffixes[i] = suffixList.get(i).toString();
+        }
+
+        return new FeatureTemplate(template, ordinal, prefix.toString(), rows, cols, suffixes);
+    }
+
+    public static FeatureTemplate[] compile(List<String> templates, int firstOrdinal) {
+        FeatureTemplate[] compiled = new FeatureTemplate[templates.size()];
+        int i = 0;
+        for(String template : templates) {
+            compiled[i] = compile(template, firstOrdinal + i);
+            i++;
+        }
+        return compiled;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -0,0 +1,73 @@
+package io.github.ksshim.crf4j.mutation.feature.quantizer;
+
+/**
+ * IEEE 754 half precision (float16) conversion.
+ */
+public class HalfFloat {
+
+    private final static float[] HALF_TO_FLOAT = new float[1 << 16];
+
+    static {
+        for(int i=0; i<HALF_TO_FLOAT.length; i++) {
+            HALF_TO_FLOAT[i] = convertToFloat((short) i);
+        }
+    }
+
+    public final static float toFloat(short half) {
+        return HALF_TO_FLOAT[half & 0xffff];
+    }
+
+    private static float convertToFloat(short half) {
+        int sign = (half >>> 15) & 0x1;
+        int exp = (half >>> 10) & 0x1f;
+        int mant = half & 0x3ff;
+
+        // zero or subnormal : mant * 2^-24
+        if(exp == 0) {
+            float value = mant * 5.9604645E-8f;
+            return sign == 0 ? value : -value;
+        }
+
+        // infinity or NaN
+        if(exp == 0x1f) {
+            if(mant != 0) return Float.NaN;
+            return sign == 0 ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY;
+        }
+
+        return Float.intBitsToFloat((sign << 31) | ((exp - 15 + 127) << 23) | (mant << 13));
+    }
+
+    /**
+     * Rounds to the nearest half (ties to even). Overflow becomes infinity.
+     */
+    public final static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int floatExp = (bits >>> 23) & 0xff;
+        int mant = bits & 0x7fffff;
+
+        // infinity or NaN
+        if(floatExp == 0xff) return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 : 0));
+
+        int exp = floatExp - 127 + 15;
+        if(exp >= 0x1f) return (short) (sign | 0x7c00);
+
+        // zero or subnormal
+        if(exp <= 0) {
+            if(exp < -10) return (short) sign;
+
+            mant |= 0x800000;
+            int shift = 14 - exp;
+            int half = mant >> shift;
+            int rest = mant & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if(rest > halfway || (rest == halfway && (half & 1) == 1)) half++;
+            return (short) (sign | half);
+        }
+
+        int half = (exp << 10) | (mant >> 13);
+        int rest = mant & 0x1fff;
+        if(rest > 0x1000 || (rest == 0x1000 && (half & 1) == 1)) half++;
+        return (short) (sign | half);
+    }
+}
@@ -0,0 +1,218 @@
+package io.github.ksshim.crf4j.mutation.feature.quantizer;
+
+import io.github.ksshim.crf4j.mutation.constants.WeightType;
+import io.github.ksshim.crf4j.mutation.feature.DecodeFeatureIndex;
+import io.github.ksshim.crf4j.mutation.feature.FeatureTemplate;
+import io.github.ksshim.crf4j.mutation.trie.DoubleArrayTrie;
+import io.github.ksshim.crf4j.mutation.trie.MappedDoubleArrayTrie;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Arrays;
+
+/**
+ * Post-training quantization of the weights of a loaded model.
+ * After quantization the double weights are released and the feature-index decodes
+ * from float32, float16 or int8 (with one scale per template) weights.
+ */
+@Log4j2
+public class WeightQuantizer {
+
+    private final static int INT8_MAX = 127;
+
+    public final static void quantize(DecodeFeatureIndex featureIndex,
+                                      WeightType weightType) {
+
+        if(weightType == WeightType.DOUBLE) return;
+
+        // a memory-mapped model is quantized from copies on the heap
+        double[] alpha = featureIndex.getAlpha();
+        if(alpha == null) alpha = featureIndex.getAlphaMapped().toArray();
+        if(weightType == WeightType.INT8 && featureIndex.getDat() instanceof MappedDoubleArrayTrie)
+            featureIndex.setDat(((MappedDoubleArrayTrie) featureIndex.getDat()).toDoubleArrayTrie());
+
+        switch (weightType) {
+            case FLOAT32:
+                quantizeToFloat32(featureIndex, alpha);
+                break;
+            case FLOAT16:
+                quantizeToFloat16(featureIndex, alpha);
+                break;
+            case INT8:
+                quantizeToInt8(featureIndex, alpha);
+                break;
+        }
+
+        featureIndex.setAlpha(null);
+        featureIndex.setAlphaMapped(null);
+        featureIndex.setWeightType(weightType);
+
+        log.info("Quantized {} weights to {} : {} bytes -> {} bytes",
+                alpha.length, weightType, alpha.length * 8L, sizeOf(featureIndex));
+    }
+
+    private static long sizeOf(DecodeFeatureIndex featureIndex) {
+        long size = 0;
+        if(featureIndex.getAlphaFloat() != null) size += featureIndex.getAlphaFloat().length * 4L;
+        if(featureIndex.getAlphaHalf() != null) size += featureIndex.getAlphaHalf().length * 2L;
+        if(featureIndex.getAlphaByte() != null) size += featureIndex.getAlphaByte().length;
+        if(featureIndex.getTemplateIdStarts() != null) size += featureIndex.getTemplateIdStarts().length * 8L;
+        return size;
+    }
+
+    private static void quantizeToFloat32(DecodeFeatureIndex featureIndex,
+                                          double[] alpha) {
+        float[] alphaFloat = new float[alpha.length];
+        double maxError = 0.0;
+        for(int i=0; i<alpha.length; i++) {
+            alphaFloat[i] = (float) alpha[i];
+            maxError = Math.max(maxError, Math.abs(alpha[i] - alphaFloat[i]));
+        }
+
+        featureIndex.setAlphaFloat(alphaFloat);
+        log.info("Max weight error : {}", maxError);
+    }
+
+    private static void quantizeToFloat16(DecodeFeatureIndex featureIndex,
+                                          double[] alpha) {
+        short[] alphaHalf = new short[alpha.length];
+        double maxError = 0.0;
+        for(int i=0; i<alpha.length; i++) {
+            alphaHalf[i] = HalfFloat.toHalf((float) alpha[i]);
+            maxError = Math.max(maxError, Math.abs(alpha[i] - HalfFloat.toFloat(alphaHalf[i])));
+        }
+
+        featureIndex.setAlphaHalf(alphaHalf);
+        log.info("Max weight error : {}", maxError);
+    }
+
+    //**********************************************************
+    // int8
+    //**********************************************************
+    private static void quantizeToInt8(DecodeFeatureIndex featureIndex,
+                                       double[] alpha) {
+
+        FeatureTemplate[] uniGramTemplates = featureIndex.getCompiledUniGramTemplates();
+        int templateSize = uniGramTemplates.length + featureIndex.getCompiledBiGramTemplates().length;
+        int tagListSize = featureIndex.tagListSize();
+
+        // 1. find the template of every feature, so that each template gets contiguous ids
+        DoubleArrayTrie dat = featureIndex.getDat();
+        int[] leafCells = findLeafCells(dat);
+        int[] leafOrdinals = findTemplateOrdinals(dat, leafCells, featureIndex.getPrefixStates(), templateSize);
+
+        long[] sortKeys = new long[leafCells.length];
+        for(int i=0; i<leafCells.length; i++) {
+            sortKeys[i] = ((long) leafOrdinals[i] << 32) | i;
+        }
+        Arrays.sort(sortKeys);
+
+        // 2. assign new ids and find scales
+        int[] base = dat.getBase();
+        int[] newIds = new int[leafCells.length];
+        int[] templateIdStarts = new int[templateSize];
+        float[] templateScales = new float[templateSize];
+
+        int newMaxId = 0;
+        int ordinal = -1;
+        for(long sortKey : sortKeys) {
+            int i = (int) sortKey;
+            for(; ordinal < leafOrdinals[i]; ordinal++) templateIdStarts[ordinal + 1] = newMaxId;
+
+            int oldId = -base[leafCells[i]] - 1;
+            int blockSize = ordinal < uniGramTemplates.length ? tagListSize : tagListSize * tagListSize;
+            for(int j=0; j<blockSize; j++) {
+                templateScales[ordinal] = (float) Math.max(templateScales[ordinal], Math.abs(alpha[oldId + j]));
+            }
+
+            newIds[i] = newMaxId;
+            newMaxId += blockSize;
+        }
+        for(; ordinal < templateSize - 1; ordinal++) templateIdStarts[ordinal + 1] = newMaxId;
+
+        for(int o=0; o<templateSize; o++) {
+            templateScales[o] = templateScales[o] > 0.0f ? templateScales[o] / INT8_MAX : 1.0f;
+        }
+
+        // 3. quantize and move weights to the new ids
+        byte[] alphaByte = new byte[alpha.length];
+        double maxError = 0.0;
+        for(long sortKey : sortKeys) {
+            int i = (int) sortKey;
+            int oldId = -base[leafCells[i]] - 1;
+            float scale = templateScales[leafOrdinals[i]];
+            int blockSize = leafOrdinals[i] < uniGramTemplates.length ? tagListSize : tagListSize * tagListSize;
+            for(int j=0; j<blockSize; j++) {
+                long q = Math.round(alpha[oldId + j] / scale);
+                alphaByte[newIds[i] + j] = (byte) Math.max(-INT8_MAX, Math.min(INT8_MAX, q));
+                maxError = Math.max(maxError, Math.abs(alpha[oldId + j] - alphaByte[newIds[i] + j] * scale));
+            }
+        }
+
+        // 4. point trie values to the new ids
+        for(int i=0; i<leafCells.length; i++) {
+            base[leafCells[i]] = -newIds[i] - 1;
+        }
+
+        featureIndex.setAlphaByte(alphaByte);
+        featureIndex.setTemplateIdStarts(templateIdStarts);
+        featureIndex.setTemplateScales(templateScales);
+        log.info("Max weight error : {}", maxError);
+    }
+
+    /**
+     * Leaf cell p (end of a key) : check[p] == p and base[p] == -value - 1.
+     */
+    private static int[] findLeafCells(DoubleArrayTrie dat) {
+        int[] base = dat.getBase();
+        int[] check = dat.getCheck();
+
+        int count = 0;
+        for(int p=1; p<check.length; p++) {
+            if(check[p] == p && base[p] < 0) count++;
+        }
+
+        int[] leafCells = new int[count];
+        count = 0;
+        for(int p=1; p<check.length; p++) {
+            if(check[p] == p && base[p] < 0) leafCells[count++] = p;
+        }
+        return leafCells;
+    }
+
+    /**
+     * Climbs from every leaf towards the root until the trie state after a template's prefix is met.
+     * The first one met is the longest prefix, i.e. the template which built the key.
+     */
+    private static int[] findTemplateOrdinals(DoubleArrayTrie dat,
+                                              int[] leafCells,
+                                              int[] prefixStates,
+                                              int templateSize) {
+        int[] base = dat.getBase();
+        int[] check = dat.getCheck();
+
+        // node cell by its base, and template ordinal by the state after its prefix
+        int[] cellOfBase = new int[base.length];
+        Arrays.fill(cellOfBase, -1);
+        for(int p=0; p<base.length; p++) {
+            if(base[p] > 0 && base[p] < base.length) cellOfBase[base[p]] = p;
+        }
+
+        int[] ordinalOfState = new int[base.length];
+        Arrays.fill(ordinalOfState, -1);
+        for(int o=templateSize-1; o>=0; o--) {
+            if(prefixStates[o] >= 0) ordinalOfState[prefixStates[o]] = o;
+        }
+
+        int[] ordinals = new int[leafCells.length];
+        for(int i=0; i<leafCells.length; i++) {
+            int state = check[leafCells[i]];
+            while(ordinalOfState[state] == -1) {
+                int cell = cellOfBase[state];
+                if(cell <= 0) throw new RuntimeException("Can't find the template of feature : " + leafCells[i]);
+                state = check[cell];
+            }
+            ordinals[i] = ordinalOfState[state];
+        }
+        return ordinals;
+    }
+}
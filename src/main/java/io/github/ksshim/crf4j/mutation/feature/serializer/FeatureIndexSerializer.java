@@ -1,27 +1,66 @@
 package io.github.ksshim.crf4j.mutation.feature.serializer;
 
 import io.github.ksshim.crf4j.mutation.constants.CommonConstants;
+import io.github.ksshim.crf4j.mutation.constants.ModelFormat;
 import io.github.ksshim.crf4j.mutation.feature.DecodeFeatureIndex;
 import io.github.ksshim.crf4j.mutation.feature.EncodeFeatureIndex;
+import io.github.ksshim.crf4j.mutation.feature.FeatureIndex;
+import io.github.ksshim.crf4j.mutation.lattice.TransitionConstraints;
 import io.github.ksshim.crf4j.mutation.trie.DoubleArrayTrie;
+import io.github.ksshim.crf4j.mutation.trie.MappedDoubleArrayTrie;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 
+/**
+ * Reads/writes models.
+ * <p>
+ * Binary format (big-endian) :
+ * <pre>
+ * int magic, int version, int meta-length
+ * meta     : double costFactor, int maxId, int inputColumnSize,
+ *            tags, uni-gram templates, bi-gram templates (int count + UTF strings each),
+ *            int trie-size, int weight-size,
+ *            tag dictionary (int count, -1 if none, + UTF token, int tag-count, int[tag-count] tags each, since version 2),
+ *            transition constraints (int tag-size, -1 if none, + boolean[tag-size * tag-size] allowed transitions,
+ *            boolean[tag-size] allowed starts, boolean[tag-size] allowed ends, since version 3)
+ * trie     : int[trie-size] base, int[trie-size] check  (8 bytes aligned)
+ * weights  : double[weight-size]                         (8 bytes aligned)
+ * </pre>
+ * Trie and weights of a binary model are memory-mapped, not copied into the heap.
+ * A serialized model keeps the tag dictionary and the transition constraints (if any) after the weights.
+ */
 @Log4j2
 public class FeatureIndexSerializer {
 
+    private final static int HEADER_SIZE = 12;
+
+    /**
+     * Reads a model of any format.
+     */
     public final static void read(DecodeFeatureIndex featureIndex,
                                   String inModelPath) throws Exception {
 
+        if(isBinary(inModelPath)) readBinary(featureIndex, inModelPath);
+        else readSerialized(featureIndex, inModelPath);
+    }
+
+    private static boolean isBinary(String inModelPath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(inModelPath))) {
+            return in.readInt() == CommonConstants.MAGIC_OF_BINARY_MODEL;
+        } catch (EOFException eof) {
+            return false;
+        }
+    }
+
+    private static void readSerialized(DecodeFeatureIndex featureIndex,
+                                       String inModelPath) throws Exception {
+
         try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(inModelPath))) {
 
             int version = (Integer)ois.readObject();
@@ -40,13 +79,171 @@ public class FeatureIndexSerializer {
             dat.setCheck(datCheck);
             dat.setSize(datBase.length);
             featureIndex.setDat(dat);
+            featureIndex.compileTemplates();
 
             featureIndex.setAlpha((double[])ois.readObject());
+
+            try {
+                featureIndex.setTagDictionary(readTagDictionary(ois));
+                boolean[] allowedTransitions = (boolean[])ois.readObject();
+                featureIndex.setTransitionConstraints(new TransitionConstraints(featureIndex.tagListSize(),
+                        allowedTransitions, (boolean[])ois.readObject(), (boolean[])ois.readObject()));
+            } catch (EOFException eof) {
+                // no more optional parts
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, int[]> readTagDictionary(ObjectInputStream ois) throws Exception {
+        return (Map<String, int[]>)ois.readObject();
+    }
+
+    private static void readBinary(DecodeFeatureIndex featureIndex,
+                                   String inModelPath) throws Exception {
+
+        int metaLength;
+        int trieSize;
+        int weightSize;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(inModelPath)))) {
+
+            in.readInt();
+            int version = in.readInt();
+            if(version < 1 || version > CommonConstants.VERSION_OF_BINARY_MODEL)
+                throw new RuntimeException("Unsupported binary model version : " + version);
+
+            metaLength = in.readInt();
+            featureIndex.setCostFactor(in.readDouble());
+            featureIndex.setMaxId(in.readInt());
+            featureIndex.setInputColumnSize(in.readInt());
+            featureIndex.setTagList(readStringList(in));
+            featureIndex.setUniGramTemplates(readStringList(in));
+            featureIndex.setBiGramTemplates(readStringList(in));
+            trieSize = in.readInt();
+            weightSize = in.readInt();
+            if(version >= 2) featureIndex.setTagDictionary(readTagDictionary(in));
+            if(version >= 3) featureIndex.setTransitionConstraints(readTransitionConstraints(in));
+        }
+
+        long trieOffset = align(HEADER_SIZE + metaLength);
+        long weightOffset = align(trieOffset + 8L * trieSize);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(inModelPath), StandardOpenOption.READ)) {
+            featureIndex.setDat(MappedDoubleArrayTrie.map(channel, trieOffset, trieSize));
+            featureIndex.compileTemplates();
+
+            featureIndex.setAlphaMapped(MappedDoubles.map(channel, weightOffset, weightSize));
+        }
+    }
+
+    private static List<String> readStringList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> list = new ArrayList<>(size);
+        for(int i=0; i<size; i++) {
+            list.add(in.readUTF());
+        }
+        return list;
+    }
+
+    private static Map<String, int[]> readTagDictionary(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if(size < 0) return null;
+
+        Map<String, int[]> tagDictionary = new HashMap<>(size * 2);
+        for(int i=0; i<size; i++) {
+            String token = in.readUTF();
+            int[] tags = new int[in.readInt()];
+            for(int j=0; j<tags.length; j++) {
+                tags[j] = in.readInt();
+            }
+            tagDictionary.put(token, tags);
+        }
+        return tagDictionary;
+    }
+
+    private static TransitionConstraints readTransitionConstraints(DataInputStream in) throws IOException {
+        int tagSize = in.readInt();
+        if(tagSize < 0) return null;
+
+        return new TransitionConstraints(tagSize,
+                readBooleans(in, tagSize * tagSize), readBooleans(in, tagSize), readBooleans(in, tagSize));
+    }
+
+    private static boolean[] readBooleans(DataInputStream in, int size) throws IOException {
+        boolean[] values = new boolean[size];
+        for(int i=0; i<size; i++) {
+            values[i] = in.readBoolean();
         }
+        return values;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
     }
 
     public final static void write(EncodeFeatureIndex featureIndex,
                                    String outFilePath) throws Exception {
+        write(featureIndex, outFilePath, ModelFormat.SERIALIZED);
+    }
+
+    public final static void write(EncodeFeatureIndex featureIndex,
+                                   String outFilePath,
+                                   ModelFormat modelFormat) throws Exception {
+
+        int maxXSize = featureIndex.getMaxXSize();
+        int xSize = featureIndex.getInputColumnSize();
+        if(maxXSize > 0) xSize = Math.min(xSize, maxXSize);
+
+        DoubleArrayTrie dat = buildTrie(featureIndex);
+
+        if(modelFormat == ModelFormat.BINARY) writeBinary(featureIndex, xSize, dat, outFilePath);
+        else writeSerialized(featureIndex, xSize, dat, outFilePath);
+    }
+
+    /**
+     * Converts a model (of any format) into the binary format.
+     */
+    public final static void convertToBinary(String inModelPath,
+                                             String outModelPath) throws Exception {
+        DecodeFeatureIndex featureIndex = new DecodeFeatureIndex();
+        read(featureIndex, inModelPath);
+
+        DoubleArrayTrie dat = featureIndex.getDat();
+        if(dat instanceof MappedDoubleArrayTrie) dat = ((MappedDoubleArrayTrie) dat).toDoubleArrayTrie();
+        if(featureIndex.getAlpha() == null) featureIndex.setAlpha(featureIndex.getAlphaMapped().toArray());
+
+        writeBinary(featureIndex, featureIndex.getInputColumnSize(), dat, outModelPath);
+    }
+
+    private static DoubleArrayTrie buildTrie(EncodeFeatureIndex featureIndex) {
+        List<Pair<String, Integer>> pairList = featureIndex.getDicAsPairList();
+        Collections.sort(pairList, new Comparator<Pair<String, Integer>>() {
+            @Override
+            public int compare(Pair<String, Integer> o1, Pair<String, Integer> o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+
+        List<String> keys = new ArrayList<>();
+        int[] values = new int[pairList.size()];
+        int i = 0;
+        for(Pair<String, Integer> pair : pairList) {
+            keys.add(pair.getKey());
+            values[i++] = pair.getValue();
+        }
+
+        DoubleArrayTrie dat = new DoubleArrayTrie();
+        log.info("Building trie ...");
+        dat.build(keys, null, values, keys.size());
+        log.info("Built trie ...");
+        return dat;
+    }
+
+    private static void writeSerialized(FeatureIndex featureIndex,
+                                        int xSize,
+                                        DoubleArrayTrie dat,
+                                        String outFilePath) throws Exception {
 
         try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outFilePath))) {
 
@@ -54,39 +251,113 @@ public class FeatureIndexSerializer {
             oos.writeObject(featureIndex.getCostFactor());
             oos.writeObject(featureIndex.getMaxId());
 
-            int maxXSize = featureIndex.getMaxXSize();
-            int xSize = featureIndex.getInputColumnSize();
-            if(maxXSize > 0) xSize = Math.min(xSize, maxXSize);
-
             oos.writeObject(xSize);
             oos.writeObject(featureIndex.getTagList());
             oos.writeObject(featureIndex.getUniGramTemplates());
             oos.writeObject(featureIndex.getBiGramTemplates());
 
-            List<Pair<String, Integer>> pairList = featureIndex.getDicAsPairList();
-            Collections.sort(pairList, new Comparator<Pair<String, Integer>>() {
-                @Override
-                public int compare(Pair<String, Integer> o1, Pair<String, Integer> o2) {
-                    return o1.getKey().compareTo(o2.getKey());
-                }
-            });
-
-            List<String> keys = new ArrayList<>();
-            int[] values = new int[pairList.size()];
-            int i = 0;
-            for(Pair<String, Integer> pair : pairList) {
-                keys.add(pair.getKey());
-                values[i++] = pair.getValue();
-            }
-
-            DoubleArrayTrie dat = new DoubleArrayTrie();
-            log.info("Building trie ...");
-            dat.build(keys, null, values, keys.size());
-            log.info("Built trie ...");
-
             oos.writeObject(dat.getBase());
             oos.writeObject(dat.getCheck());
             oos.writeObject(featureIndex.getAlpha());
+
+            TransitionConstraints constraints = featureIndex.getTransitionConstraints();
+            if(featureIndex.getTagDictionary() != null || constraints != null)
+                oos.writeObject(featureIndex.getTagDictionary());
+            if(constraints != null) {
+                oos.writeObject(constraints.getAllowedTransitions());
+                oos.writeObject(constraints.getAllowedStarts());
+                oos.writeObject(constraints.getAllowedEnds());
+            }
         }
     }
+
+    private static void writeBinary(FeatureIndex featureIndex,
+                                    int xSize,
+                                    DoubleArrayTrie dat,
+                                    String outFilePath) throws Exception {
+
+        int[] base = dat.getBase();
+        int[] check = dat.getCheck();
+        double[] alpha = featureIndex.getAlpha();
+
+        // 1. meta
+        ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+        try (DataOutputStream meta = new DataOutputStream(metaBytes)) {
+            meta.writeDouble(featureIndex.getCostFactor());
+            meta.writeInt(featureIndex.getMaxId());
+            meta.writeInt(xSize);
+            writeStringList(meta, featureIndex.getTagList());
+            writeStringList(meta, featureIndex.getUniGramTemplates());
+            writeStringList(meta, featureIndex.getBiGramTemplates());
+            meta.writeInt(base.length);
+            meta.writeInt(alpha.length);
+            writeTagDictionary(meta, featureIndex.getTagDictionary());
+            writeTransitionConstraints(meta, featureIndex.getTransitionConstraints());
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(outFilePath)))) {
+
+            // 2. header + meta
+            out.writeInt(CommonConstants.MAGIC_OF_BINARY_MODEL);
+            out.writeInt(CommonConstants.VERSION_OF_BINARY_MODEL);
+            out.writeInt(metaBytes.size());
+            metaBytes.writeTo(out);
+            long offset = HEADER_SIZE + metaBytes.size();
+
+            // 3. trie
+            offset = pad(out, offset);
+            for(int b : base) out.writeInt(b);
+            for(int c : check) out.writeInt(c);
+            offset += 8L * base.length;
+
+            // 4. weights
+            pad(out, offset);
+            for(double a : alpha) out.writeDouble(a);
+        }
+    }
+
+    private static void writeStringList(DataOutputStream out,
+                                        List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for(String s : list) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static void writeTagDictionary(DataOutputStream out,
+                                           Map<String, int[]> tagDictionary) throws IOException {
+        if(tagDictionary == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(tagDictionary.size());
+        for(Map.Entry<String, int[]> entry : tagDictionary.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            for(int tag : entry.getValue()) {
+                out.writeInt(tag);
+            }
+        }
+    }
+
+    private static void writeTransitionConstraints(DataOutputStream out,
+                                                   TransitionConstraints constraints) throws IOException {
+        if(constraints == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(constraints.tagListSize());
+        for(boolean allowed : constraints.getAllowedTransitions()) out.writeBoolean(allowed);
+        for(boolean allowed : constraints.getAllowedStarts()) out.writeBoolean(allowed);
+        for(boolean allowed : constraints.getAllowedEnds()) out.writeBoolean(allowed);
+    }
+
+    private static long pad(DataOutputStream out, long offset) throws IOException {
+        long aligned = align(offset);
+        for(long i=offset; i<aligned; i++) out.writeByte(0);
+        return aligned;
+    }
 }
@@ -0,0 +1,54 @@
+package io.github.ksshim.crf4j.mutation.feature.serializer;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only double array backed by memory-mapped file regions.
+ * A single mapping is limited to 2GB, so the array is mapped in chunks.
+ */
+public class MappedDoubles {
+
+    // 2^27 doubles (1GB) per mapping
+    private final static int CHUNK_SHIFT = 27;
+    private final static int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final DoubleBuffer[] chunks;
+    private final int length;
+
+    private MappedDoubles(DoubleBuffer[] chunks, int length) {
+        this.chunks = chunks;
+        this.length = length;
+    }
+
+    public static MappedDoubles map(FileChannel channel,
+                                    long offset,
+                                    int length) throws IOException {
+        int chunkSize = (length + CHUNK_MASK) >>> CHUNK_SHIFT;
+        DoubleBuffer[] chunks = new DoubleBuffer[chunkSize];
+        for(int i=0; i<chunkSize; i++) {
+            long start = (long) i << CHUNK_SHIFT;
+            long size = Math.min(length - start, 1L << CHUNK_SHIFT);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start * 8, size * 8).asDoubleBuffer();
+        }
+        return new MappedDoubles(chunks, length);
+    }
+
+    public double get(int index) {
+        return chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public double[] toArray() {
+        double[] array = new double[length];
+        for(int i=0; i<chunks.length; i++) {
+            DoubleBuffer chunk = chunks[i].duplicate();
+            chunk.get(array, i << CHUNK_SHIFT, chunk.remaining());
+        }
+        return array;
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.ksshim.crf4j.mutation.lattice;
+
+import java.util.Arrays;
+
+/**
+ * Agenda of the backward A* search for n-best paths.
+ * Every element is a partial path from (x, y) to the end of the lattice, linked to
+ * the element it was expanded from. Elements live in parallel primitive arrays and
+ * the priority queue is a binary max-heap (by fx) of element indexes, so the agenda
+ * can be reused without allocation once it has grown.
+ */
+class AStarAgenda {
+
+    private int size;
+    private int[] x = new int[0];
+    private int[] y = new int[0];
+    private int[] next = new int[0];
+    // score of the partial path (x, y) -> end
+    private double[] gx = new double[0];
+    // gx + best score of start -> (x, y)
+    private double[] fx = new double[0];
+
+    private int heapSize;
+    private int[] heap = new int[0];
+
+    void clear() {
+        size = 0;
+        heapSize = 0;
+    }
+
+    boolean isEmpty() {
+        return heapSize == 0;
+    }
+
+    int getX(int element) {
+        return x[element];
+    }
+
+    int getY(int element) {
+        return y[element];
+    }
+
+    int getNext(int element) {
+        return next[element];
+    }
+
+    double getGx(int element) {
+        return gx[element];
+    }
+
+    void push(int x, int y, int next, double gx, double fx) {
+        if(size == this.x.length) grow();
+
+        int element = size++;
+        this.x[element] = x;
+        this.y[element] = y;
+        this.next[element] = next;
+        this.gx[element] = gx;
+        this.fx[element] = fx;
+
+        // sift up
+        int i = heapSize++;
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(this.fx[heap[parent]] >= fx) break;
+
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = element;
+    }
+
+    /**
+     * @return element which has the best fx
+     */
+    int pop() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+
+        // sift down
+        int i = 0;
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= heapSize) break;
+            if(child + 1 < heapSize && fx[heap[child + 1]] > fx[heap[child]]) child++;
+            if(fx[heap[child]] <= fx[last]) break;
+
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+
+        return top;
+    }
+
+    private void grow() {
+        int newSize = Math.max(64, x.length * 2);
+        x = Arrays.copyOf(x, newSize);
+        y = Arrays.copyOf(y, newSize);
+        next = Arrays.copyOf(next, newSize);
+        heap = Arrays.copyOf(heap, newSize);
+        gx = Arrays.copyOf(gx, newSize);
+        fx = Arrays.copyOf(fx, newSize);
+    }
+}
@@ -0,0 +1,559 @@
+package io.github.ksshim.crf4j.mutation.lattice;
+
+import io.github.ksshim.crf4j.mutation.feature.FeatureIdListCache;
+import io.github.ksshim.crf4j.mutation.feature.FeatureIndex;
+import io.github.ksshim.crf4j.mutation.tagger.DecodeTagger;
+import io.github.ksshim.crf4j.mutation.tagger.Tagger;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lattice for decoding which keeps node/path costs, best costs and back-pointers
+ * in flat primitive arrays instead of {@link Node}/{@link Path} object graphs.
+ * Arrays only grow, so one instance can be reused for every sentence of a tagger.
+ * <p>
+ * Only candidate tags of each position (e.g. restricted by the tag dictionary of the model)
+ * get nodes, and only paths allowed by the transition constraints (if any) connect them :
+ * costs are calculated and searches iterate over the allowed predecessors/successors of each node.
+ */
+public class ArrayLattice {
+
+    private int size;
+    private int tagListSize;
+    // true if some nodes/paths are left out : every node then must have a path from the start
+    // (the best path is exact instead of starting again at a node with no better predecessor)
+    private boolean constrained;
+
+    // [size * tagListSize]
+    private double[] nodeCost = new double[0];
+    private double[] bestCost = new double[0];
+    private int[] prev = new int[0];
+    private double[] alpha = new double[0];
+    private double[] beta = new double[0];
+    private double z;
+    // [size * tagListSize * tagListSize], path cost of (cur-1, lY) -> (cur, rY)
+    private double[] pathCost = new double[0];
+
+    // candidate tags (ascending) of cur are candidateTags[candidateOffsets[cur] .. candidateOffsets[cur + 1])
+    private int[] candidateOffsets = new int[1];
+    private int[] candidateTags = new int[0];
+    // [size * tagListSize] index of the node in candidateTags, -1 if not a candidate
+    private int[] candidateIndexes = new int[0];
+    // predecessors (ascending) of candidate c are prevTags[prevOffsets[c] .. prevOffsets[c + 1]), successors likewise
+    private int[] prevOffsets = new int[1];
+    private int[] prevTags = new int[0];
+    private int[] nextOffsets = new int[1];
+    private int[] nextTags = new int[0];
+    // [size * tagListSize] by candidate, true if it has an allowed path from the start
+    private boolean[] reachable = new boolean[0];
+
+    // n-best paths : [nBestSize * size] tag indexes and [nBestSize] costs
+    private int nBestSize;
+    private int[] nBestResults = new int[0];
+    private double[] nBestCosts = new double[0];
+    private final AStarAgenda agenda = new AStarAgenda();
+
+    public int size() {
+        return size;
+    }
+
+    public int tagListSize() {
+        return tagListSize;
+    }
+
+    public double getNodeCost(int cur, int y) {
+        return nodeCost[cur * tagListSize + y];
+    }
+
+    public double getPathCost(int cur, int lY, int rY) {
+        return pathCost[(cur * tagListSize + lY) * tagListSize + rY];
+    }
+
+    public double getBestCost(int cur, int y) {
+        return bestCost[cur * tagListSize + y];
+    }
+
+    public int getPrev(int cur, int y) {
+        return prev[cur * tagListSize + y];
+    }
+
+    /**
+     * @return number of nodes (candidates of all positions)
+     */
+    public int candidateSize() {
+        return candidateOffsets[size];
+    }
+
+    public int candidateSizeAt(int cur) {
+        return candidateOffsets[cur + 1] - candidateOffsets[cur];
+    }
+
+    public int getCandidateTagAt(int cur, int i) {
+        return candidateTags[candidateOffsets[cur] + i];
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    private void ensureCapacity(int size, int tagListSize) {
+        this.size = size;
+        this.tagListSize = tagListSize;
+
+        int nodeCapacity = size * tagListSize;
+        if(nodeCost.length < nodeCapacity) {
+            nodeCost = new double[nodeCapacity];
+            bestCost = new double[nodeCapacity];
+            prev = new int[nodeCapacity];
+            alpha = new double[nodeCapacity];
+            beta = new double[nodeCapacity];
+            candidateTags = new int[nodeCapacity];
+            candidateIndexes = new int[nodeCapacity];
+            reachable = new boolean[nodeCapacity];
+            prevOffsets = new int[nodeCapacity + 1];
+            nextOffsets = new int[nodeCapacity + 1];
+        }
+
+        int pathCapacity = nodeCapacity * tagListSize;
+        if(pathCost.length < pathCapacity) {
+            pathCost = new double[pathCapacity];
+            prevTags = new int[pathCapacity];
+            nextTags = new int[pathCapacity];
+        }
+
+        if(candidateOffsets.length < size + 1) candidateOffsets = new int[size + 1];
+    }
+
+    public void build(FeatureIndex featureIndex, DecodeTagger tagger) {
+        buildStructure(featureIndex, tagger);
+        calculateCosts(featureIndex, tagger);
+    }
+
+    /**
+     * Builds the nodes (candidate tags) and paths (allowed transitions) of the tagger's sentence.
+     */
+    public void buildStructure(FeatureIndex featureIndex, DecodeTagger tagger) {
+
+        ensureCapacity(tagger.inputColumnListSize(), featureIndex.tagListSize());
+
+        // candidate
+        buildCandidates(featureIndex, tagger, true);
+        buildTransitions(featureIndex.getTransitionConstraints());
+        if(constrained && !hasAllowedPath()) {
+            // the tag dictionary may leave no allowed path, then it is ignored
+            if(featureIndex.getTagDictionary() != null) {
+                buildCandidates(featureIndex, tagger, false);
+                buildTransitions(featureIndex.getTransitionConstraints());
+            }
+            if(!hasAllowedPath())
+                throw new RuntimeException("No allowed path : allowed tags conflict with the transition constraints");
+        }
+    }
+
+    /**
+     * Calculates the costs of the nodes and paths built by {@link #buildStructure(FeatureIndex, DecodeTagger)}.
+     */
+    public void calculateCosts(FeatureIndex featureIndex, DecodeTagger tagger) {
+        int featureIdListIndex = tagger.getFeatureIdListIndex();
+        FeatureIdListCache featureIdListCache = tagger.getFeatureIdListCache();
+        int[] featureIds = featureIdListCache.getIds();
+        double costFactor = tagger.getCostFactor();
+
+        // node
+        for(int cur=0; cur<size; cur++) {
+            int start = featureIdListCache.offsetOf(featureIdListIndex);
+            int end = featureIdListCache.offsetOf(++featureIdListIndex);
+            featureIndex.calculateNodeCosts(featureIds, start, end,
+                    candidateTags, candidateOffsets[cur], candidateOffsets[cur + 1], costFactor, nodeCost, cur * tagListSize);
+        }
+
+        // path
+        for(int cur=1; cur<size; cur++) {
+            int start = featureIdListCache.offsetOf(featureIdListIndex);
+            int end = featureIdListCache.offsetOf(++featureIdListIndex);
+            int offset = cur * tagListSize * tagListSize;
+            for(int rc=candidateOffsets[cur]; rc<candidateOffsets[cur + 1]; rc++) {
+                featureIndex.calculatePathCosts(featureIds, start, end,
+                        prevTags, prevOffsets[rc], prevOffsets[rc + 1], candidateTags[rc], costFactor, pathCost, offset);
+            }
+        }
+    }
+
+    /**
+     * Candidate tags of every position : all tags unless restricted by the tagger (allowed tags)
+     * or by the feature-index (tag dictionary, tags which can't start/end a sequence).
+     * Allowed tags of the tagger take the place of the tag dictionary.
+     * Nodes which are not candidates get the cost of negative infinity.
+     */
+    private void buildCandidates(FeatureIndex featureIndex,
+                                 DecodeTagger tagger,
+                                 boolean useTagDictionary) {
+        TransitionConstraints constraints = featureIndex.getTransitionConstraints();
+        constrained = constraints != null;
+
+        int n = 0;
+        for(int cur=0; cur<size; cur++) {
+            candidateOffsets[cur] = n;
+            int offset = cur * tagListSize;
+
+            int[] tags = tagger.getAllowedTagsAt(cur);
+            if(tags == null && useTagDictionary) tags = featureIndex.getCandidateTagsAt(tagger, cur);
+            boolean first = cur == 0 && constraints != null;
+            boolean last = cur == size - 1 && constraints != null;
+            for(int i=0, length = tags == null ? tagListSize : tags.length; i<length; i++) {
+                int y = tags == null ? i : tags[i];
+                if(first && !constraints.isAllowedStart(y)) continue;
+                if(last && !constraints.isAllowedEnd(y)) continue;
+
+                candidateTags[n++] = y;
+            }
+
+            if(n - candidateOffsets[cur] == tagListSize) continue;
+
+            constrained = true;
+            Arrays.fill(nodeCost, offset, offset + tagListSize, Double.NEGATIVE_INFINITY);
+        }
+        candidateOffsets[size] = n;
+
+        Arrays.fill(candidateIndexes, 0, size * tagListSize, -1);
+        for(int cur=0; cur<size; cur++) {
+            for(int c=candidateOffsets[cur]; c<candidateOffsets[cur + 1]; c++) {
+                candidateIndexes[cur * tagListSize + candidateTags[c]] = c;
+            }
+        }
+    }
+
+    /**
+     * Allowed predecessors/successors of every candidate : candidates of the adjacent position
+     * unless the transition is forbidden.
+     */
+    private void buildTransitions(TransitionConstraints constraints) {
+        int p = 0;
+        for(int cur=0; cur<size; cur++) {
+            for(int rc=candidateOffsets[cur]; rc<candidateOffsets[cur + 1]; rc++) {
+                prevOffsets[rc] = p;
+                if(cur == 0) continue;
+
+                int rY = candidateTags[rc];
+                for(int lc=candidateOffsets[cur - 1]; lc<candidateOffsets[cur]; lc++) {
+                    int lY = candidateTags[lc];
+                    if(constraints == null || constraints.isAllowed(lY, rY)) prevTags[p++] = lY;
+                }
+            }
+        }
+        prevOffsets[candidateOffsets[size]] = p;
+
+        int q = 0;
+        for(int cur=0; cur<size; cur++) {
+            for(int lc=candidateOffsets[cur]; lc<candidateOffsets[cur + 1]; lc++) {
+                nextOffsets[lc] = q;
+                if(cur == size - 1) continue;
+
+                int lY = candidateTags[lc];
+                for(int rc=candidateOffsets[cur + 1]; rc<candidateOffsets[cur + 2]; rc++) {
+                    int rY = candidateTags[rc];
+                    if(constraints == null || constraints.isAllowed(lY, rY)) nextTags[q++] = rY;
+                }
+            }
+        }
+        nextOffsets[candidateOffsets[size]] = q;
+    }
+
+    /**
+     * @return true if some candidate of the last position has an allowed path from the start
+     */
+    private boolean hasAllowedPath() {
+        if(size == 0) return true;
+
+        for(int c=candidateOffsets[0]; c<candidateOffsets[1]; c++) {
+            reachable[c] = true;
+        }
+        for(int cur=1; cur<size; cur++) {
+            int offset = (cur - 1) * tagListSize;
+            for(int rc=candidateOffsets[cur]; rc<candidateOffsets[cur + 1]; rc++) {
+                reachable[rc] = false;
+                for(int p=prevOffsets[rc]; p<prevOffsets[rc + 1]; p++) {
+                    if(reachable[candidateIndexes[offset + prevTags[p]]]) {
+                        reachable[rc] = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        for(int c=candidateOffsets[size - 1]; c<candidateOffsets[size]; c++) {
+            if(reachable[c]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Same search (and tie-breaking) as {@link Tagger#viterbi()} on the node/path lattice.
+     * If the lattice is constrained, the search is exact so that the best path is always an allowed one.
+     *
+     * @return cost of the best path
+     */
+    public double viterbi(List<Integer> resultList) {
+
+        double threshold = constrained ? Double.NEGATIVE_INFINITY : Double.MIN_VALUE;
+
+        // 1. calculate best node and cost
+        for(int c=candidateOffsets[0]; c<candidateOffsets[1]; c++) {
+            int y = candidateTags[c];
+            bestCost[y] = nodeCost[y];
+            prev[y] = -1;
+        }
+
+        for(int cur=1; cur<size; cur++) {
+            int offset = cur * tagListSize;
+            int prevOffset = offset - tagListSize;
+            for(int rc=candidateOffsets[cur]; rc<candidateOffsets[cur + 1]; rc++) {
+                int rY = candidateTags[rc];
+                double node = nodeCost[offset + rY];
+                double best = threshold;
+                int bestY = -1;
+                int pathOffset = offset * tagListSize + rY;
+                for(int p=prevOffsets[rc]; p<prevOffsets[rc + 1]; p++) {
+                    int lY = prevTags[p];
+                    double cost = bestCost[prevOffset + lY] + pathCost[pathOffset + lY * tagListSize] + node;
+                    if(cost <= best) continue;
+
+                    best = cost;
+                    bestY = lY;
+                }
+
+                prev[offset + rY] = bestY;
+                bestCost[offset + rY] = bestY != -1 ? best : (constrained ? Double.NEGATIVE_INFINITY : node);
+            }
+        }
+
+        // 2. pick the end-node which has the best cost
+        int last = size - 1;
+        int lastOffset = last * tagListSize;
+        int bestY = candidateTags[candidateOffsets[last]];
+        for(int c=candidateOffsets[last] + 1; c<candidateOffsets[size]; c++) {
+            int y = candidateTags[c];
+            if(bestCost[lastOffset + bestY] >= bestCost[lastOffset + y]) continue;
+
+            bestY = y;
+        }
+
+        // 3. store best path
+        for(int cur=last, y=bestY; cur >= 0 && y != -1; y = prev[cur * tagListSize + y], cur--) {
+            resultList.set(cur, y);
+        }
+
+        return -bestCost[lastOffset + bestY];
+    }
+
+    /**
+     * @return score of the path labeled by resultList (its node and path costs), negative infinity if it is not
+     * an allowed path. Unlike the cost returned by {@link #viterbi(List)}, which is of the suffix only when
+     * the best path was restarted, this is always the score of the whole sequence.
+     */
+    public double scoreOf(List<Integer> resultList) {
+        double score = 0.0;
+        for(int cur=0; cur<size; cur++) {
+            int offset = cur * tagListSize;
+            int y = resultList.get(cur);
+            int rc = candidateIndexes[offset + y];
+            if(rc == -1) return Double.NEGATIVE_INFINITY;
+            if(cur == 0) {
+                score = nodeCost[y];
+                continue;
+            }
+
+            int lY = resultList.get(cur - 1);
+            int p = prevOffsets[rc];
+            while(p < prevOffsets[rc + 1] && prevTags[p] != lY) p++;
+            if(p == prevOffsets[rc + 1]) return Double.NEGATIVE_INFINITY;
+
+            // same order of additions as viterbi
+            score = score + pathCost[offset * tagListSize + lY * tagListSize + y] + nodeCost[offset + y];
+        }
+        return score;
+    }
+
+    //********************************************************************
+    //
+    // Marginal probability related methods
+    //
+    //********************************************************************
+    /**
+     * Same as {@link Tagger#forwardBackward()} on the node/path lattice : fills alpha/beta (log-space)
+     * and the log partition function z. A node with no allowed predecessor (successor) gets
+     * the alpha (beta) of negative infinity.
+     */
+    public void forwardBackward() {
+        if(size == 0) return;
+
+        // forward (alpha)
+        for(int c=candidateOffsets[0]; c<candidateOffsets[1]; c++) {
+            int y = candidateTags[c];
+            alpha[y] = nodeCost[y];
+        }
+
+        for(int cur=1; cur<size; cur++) {
+            int offset = cur * tagListSize;
+            int prevOffset = offset - tagListSize;
+            for(int rc=candidateOffsets[cur]; rc<candidateOffsets[cur + 1]; rc++) {
+                int rY = candidateTags[rc];
+                double a = Double.NEGATIVE_INFINITY;
+                int pathOffset = offset * tagListSize + rY;
+                for(int p=prevOffsets[rc]; p<prevOffsets[rc + 1]; p++) {
+                    int lY = prevTags[p];
+                    a = LSE.logSumExp(a, pathCost[pathOffset + lY * tagListSize] + alpha[prevOffset + lY],
+                            p == prevOffsets[rc]);
+                }
+                alpha[offset + rY] = a + nodeCost[offset + rY];
+            }
+        }
+
+        // backward (beta)
+        int last = size - 1;
+        for(int c=candidateOffsets[last]; c<candidateOffsets[size]; c++) {
+            int y = candidateTags[c];
+            beta[last * tagListSize + y] = nodeCost[last * tagListSize + y];
+        }
+
+        for(int cur=last - 1; cur>=0; cur--) {
+            int offset = cur * tagListSize;
+            int nextOffset = offset + tagListSize;
+            for(int lc=candidateOffsets[cur]; lc<candidateOffsets[cur + 1]; lc++) {
+                int lY = candidateTags[lc];
+                double b = Double.NEGATIVE_INFINITY;
+                int pathOffset = (nextOffset + lY) * tagListSize;
+                for(int q=nextOffsets[lc]; q<nextOffsets[lc + 1]; q++) {
+                    int rY = nextTags[q];
+                    b = LSE.logSumExp(b, pathCost[pathOffset + rY] + beta[nextOffset + rY],
+                            q == nextOffsets[lc]);
+                }
+                beta[offset + lY] = b + nodeCost[offset + lY];
+            }
+        }
+
+        z = 0.0;
+        for(int c=candidateOffsets[0]; c<candidateOffsets[1]; c++) {
+            z = LSE.logSumExp(z, beta[candidateTags[c]], c == candidateOffsets[0]);
+        }
+    }
+
+    /**
+     * @return marginal probability of tag y at cur (0 if not a candidate). Valid after {@link #forwardBackward()}.
+     */
+    public double getMarginalAt(int cur, int y) {
+        int index = cur * tagListSize + y;
+        if(candidateIndexes[index] == -1) return 0.0;
+
+        double logProb = alpha[index] + beta[index] - nodeCost[index] - z;
+        return logProb == Double.NEGATIVE_INFINITY || Double.isNaN(logProb) ? 0.0 : Math.exp(logProb);
+    }
+
+    //********************************************************************
+    //
+    // N-best related methods
+    //
+    //********************************************************************
+    /**
+     * Finds the n best paths in order : an exact forward pass fills the viterbi table
+     * (best score of start -> (cur, y)) and a backward A* search, which uses it as its
+     * heuristic, pops complete paths best-first.
+     * <p>
+     * The forward pass is exact even if the lattice is not constrained, unlike {@link #viterbi(List)} which keeps
+     * the threshold of {@link Tagger#viterbi()} and restarts the best path at a node whose incoming scores are all
+     * non-positive. In that case the first path is the true best one and may differ from the 1-best.
+     *
+     * @return number of paths found (at most n)
+     */
+    public int nbest(int n) {
+
+        nBestSize = 0;
+        if(n <= 0 || size == 0) return 0;
+        if(nBestCosts.length < n) nBestCosts = new double[n];
+        if(nBestResults.length < n * size) nBestResults = new int[n * size];
+
+        // 1. forward
+        for(int c=candidateOffsets[0]; c<candidateOffsets[1]; c++) {
+            int y = candidateTags[c];
+            bestCost[y] = nodeCost[y];
+            prev[y] = -1;
+        }
+
+        for(int cur=1; cur<size; cur++) {
+            int offset = cur * tagListSize;
+            int prevOffset = offset - tagListSize;
+            for(int rc=candidateOffsets[cur]; rc<candidateOffsets[cur + 1]; rc++) {
+                int rY = candidateTags[rc];
+                double best = Double.NEGATIVE_INFINITY;
+                int bestY = -1;
+                int pathOffset = offset * tagListSize + rY;
+                for(int p=prevOffsets[rc]; p<prevOffsets[rc + 1]; p++) {
+                    int lY = prevTags[p];
+                    double cost = bestCost[prevOffset + lY] + pathCost[pathOffset + lY * tagListSize];
+                    if(cost <= best) continue;
+
+                    best = cost;
+                    bestY = lY;
+                }
+
+                prev[offset + rY] = bestY;
+                bestCost[offset + rY] = best + nodeCost[offset + rY];
+            }
+        }
+
+        // 2. backward A* from the end-nodes
+        agenda.clear();
+        int last = size - 1;
+        for(int c=candidateOffsets[last]; c<candidateOffsets[size]; c++) {
+            int y = candidateTags[c];
+            if(bestCost[last * tagListSize + y] == Double.NEGATIVE_INFINITY) continue;
+
+            agenda.push(last, y, -1, nodeCost[last * tagListSize + y], bestCost[last * tagListSize + y]);
+        }
+
+        while(nBestSize < n && !agenda.isEmpty()) {
+            int element = agenda.pop();
+            int x = agenda.getX(element);
+            int rY = agenda.getY(element);
+            double gx = agenda.getGx(element);
+
+            // 2-1. reached the start : store the path
+            if(x == 0) {
+                int offset = nBestSize * size;
+                for(int e = element; e != -1; e = agenda.getNext(e)) {
+                    nBestResults[offset + agenda.getX(e)] = agenda.getY(e);
+                }
+                nBestCosts[nBestSize++] = -gx;
+                continue;
+            }
+
+            // 2-2. expand to the left nodes
+            int lOffset = (x - 1) * tagListSize;
+            int pathOffset = x * tagListSize * tagListSize + rY;
+            int rc = candidateIndexes[x * tagListSize + rY];
+            for(int p=prevOffsets[rc]; p<prevOffsets[rc + 1]; p++) {
+                int lY = prevTags[p];
+                // no path from the start
+                if(bestCost[lOffset + lY] == Double.NEGATIVE_INFINITY) continue;
+
+                double g = gx + pathCost[pathOffset + lY * tagListSize];
+                agenda.push(x - 1, lY, element, g + nodeCost[lOffset + lY], g + bestCost[lOffset + lY]);
+            }
+        }
+
+        return nBestSize;
+    }
+
+    public int nBestSize() {
+        return nBestSize;
+    }
+
+    public int getNBestResultAt(int k, int cur) {
+        return nBestResults[k * size + cur];
+    }
+
+    public double getNBestCostAt(int k) {
+        return nBestCosts[k];
+    }
+}
@@ -9,6 +9,8 @@ public class LSE {
 
         double vMin = Math.min(x, y);
         double vMax = Math.max(x, y);
+        // both impossible (e.g. paths left out by constraints)
+        if(vMax == Double.NEGATIVE_INFINITY) return vMax;
         if(vMax > vMin + MINUS_LOG_EPSILON) return vMax;
 
         return vMax + Math.log(Math.exp(vMin -vMax) + 1.0);
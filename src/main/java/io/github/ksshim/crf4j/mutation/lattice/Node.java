@@ -20,7 +20,11 @@ public class Node {
     private double bestCost = -1e37;
 
     private Node prev;
-    private List<Integer> featureVector;
+    // features : featureIds[featureStart .. featureEnd), their expected counts by expectedIds (same range)
+    private int[] featureIds;
+    private int[] expectedIds;
+    private int featureStart;
+    private int featureEnd;
     private List<Path> leftPathList;
     private List<Path> rightPathList;
 
@@ -45,13 +49,23 @@ public class Node {
         leftPathList.add(path);
     }
 
-    public Integer getFVectorAt(int index) {
-        return featureVector.get(index);
+    public int getFVectorAt(int index) {
+        return featureIds[featureStart + index];
+    }
+
+    public void setFeatures(int[] featureIds,
+                            int[] expectedIds,
+                            int featureStart,
+                            int featureEnd) {
+        this.featureIds = featureIds;
+        this.expectedIds = expectedIds;
+        this.featureStart = featureStart;
+        this.featureEnd = featureEnd;
     }
 
     public void decrementsExpected(double[] expected, int index) {
-        for (int i=0; featureVector.get(i) != -1; i++) {
-            int idx = featureVector.get(i) + index;
+        for(int i=featureStart; i<featureEnd; i++) {
+            int idx = expectedIds[i] + index;
             expected[idx]--;
         }
     }
@@ -76,16 +90,23 @@ public class Node {
                                      double z,
                                      int size) {
         double c = Math.exp(alpha + beta - cost - z);
-        for(int i=0; featureVector.get(i) != -1; i++) {
-            int idx = featureVector.get(i) + y;
-            expected[idx] += c;
-        }
+        incrementsExpected(expected, c);
 
         for(Path p : leftPathList) {
             p.calculateExpectation(expected, z, size);
         }
     }
 
+    /**
+     * Adds c (marginal probability of this node) to the expected counts of its features.
+     */
+    public void incrementsExpected(double[] expected, double c) {
+        for(int i=featureStart; i<featureEnd; i++) {
+            int idx = expectedIds[i] + y;
+            expected[idx] += c;
+        }
+    }
+
     public void incrementCost(double incrementalCost) {
         cost += incrementalCost;
     }
@@ -98,7 +119,8 @@ public class Node {
         this.cost = 0;
 
         this.prev = null;
-        this.featureVector = null;
+        this.featureIds = null;
+        this.expectedIds = null;
 
         this.leftPathList.clear();
         this.rightPathList.clear();
@@ -2,18 +2,30 @@ package io.github.ksshim.crf4j.mutation.lattice;
 
 import lombok.Data;
 
-import java.util.List;
-
 @Data
 public class Path {
 
     private Node rNode;
     private Node lNode;
-    private List<Integer> featureVector;
+    // features : featureIds[featureStart .. featureEnd), their expected counts by expectedIds (same range)
+    private int[] featureIds;
+    private int[] expectedIds;
+    private int featureStart;
+    private int featureEnd;
     private double cost;
 
-    public Integer getFVectorAt(int index) {
-        return featureVector.get(index);
+    public int getFVectorAt(int index) {
+        return featureIds[featureStart + index];
+    }
+
+    public void setFeatures(int[] featureIds,
+                            int[] expectedIds,
+                            int featureStart,
+                            int featureEnd) {
+        this.featureIds = featureIds;
+        this.expectedIds = expectedIds;
+        this.featureStart = featureStart;
+        this.featureEnd = featureEnd;
     }
 
     public double getLNodeBestCost() {
@@ -49,8 +61,9 @@ public class Path {
     }
 
     public void decrementsExpected(double[] expected, int ySize) {
-        for(int i=0; featureVector.get(i) != -1; i++) {
-            int index = featureVector.get(i) + (lNode.getY() * ySize) + rNode.getY();
+        int offset = (lNode.getY() * ySize) + rNode.getY();
+        for(int i=featureStart; i<featureEnd; i++) {
+            int index = expectedIds[i] + offset;
             expected[index]--;
         }
     }
@@ -59,8 +72,16 @@ public class Path {
                                      double z,
                                      int size) {
         double c = Math.exp(lNode.getAlpha() + cost + rNode.getBeta() - z);
-        for(int i=0; featureVector.get(i) != -1; i++) {
-            int index = featureVector.get(i) + (lNode.getY() * size) + rNode.getY();
+        incrementsExpected(expected, c, size);
+    }
+
+    /**
+     * Adds c (marginal probability of this path) to the expected counts of its features.
+     */
+    public void incrementsExpected(double[] expected, double c, int ySize) {
+        int offset = (lNode.getY() * ySize) + rNode.getY();
+        for(int i=featureStart; i<featureEnd; i++) {
+            int index = expectedIds[i] + offset;
             expected[index] += c;
         }
     }
@@ -75,7 +96,8 @@ public class Path {
     public void clear() {
         this.rNode = null;
         this.lNode = null;
-        this.featureVector = null;
+        this.featureIds = null;
+        this.expectedIds = null;
         this.cost = 0.0;
     }
 }
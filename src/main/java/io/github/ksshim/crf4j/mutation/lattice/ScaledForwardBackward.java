@@ -0,0 +1,188 @@
+package io.github.ksshim.crf4j.mutation.lattice;
+
+import io.github.ksshim.crf4j.mutation.tagger.Tagger;
+
+import java.util.Arrays;
+
+/**
+ * Forward-backward over the {@link Node}/{@link Path} lattice of a tagger in probability space
+ * instead of log space. Alpha of every position is normalized to sum to 1 and beta is scaled alike,
+ * so neither overflows nor underflows; log(z) is the sum of the logs of the scaling factors.
+ * Potentials (exp of node/path costs relative to the max cost of their position) are calculated once
+ * per node/path into flat arrays which the recursions run over, while the log-space forward-backward
+ * takes a log() and an exp() per path and direction and one more exp() per node/path for the expectations.
+ * <p>
+ * Arrays only grow, so one instance can be reused for every sentence of a training thread. Not thread-safe.
+ */
+public class ScaledForwardBackward {
+
+    private int size;
+    private int tagListSize;
+
+    // [size * tagListSize] exp(node cost - max node cost of the position)
+    private double[] nodePotential = new double[0];
+    // [size * tagListSize * tagListSize] exp(cost of (cur-1, lY) -> (cur, rY) - max path cost of cur)
+    private double[] pathPotential = new double[0];
+    // [size * tagListSize] scaled alpha (including the node) and beta (excluding the node)
+    private double[] alpha = new double[0];
+    private double[] beta = new double[0];
+    // [size] sum of alpha of the position before scaling
+    private double[] scale = new double[0];
+    // [tagListSize]
+    private double[] scratch = new double[0];
+
+    private void ensureCapacity(int size, int tagListSize) {
+        this.size = size;
+        this.tagListSize = tagListSize;
+
+        int nodeCapacity = size * tagListSize;
+        if(nodePotential.length < nodeCapacity) {
+            nodePotential = new double[nodeCapacity];
+            alpha = new double[nodeCapacity];
+            beta = new double[nodeCapacity];
+        }
+
+        int pathCapacity = nodeCapacity * tagListSize;
+        if(pathPotential.length < pathCapacity) pathPotential = new double[pathCapacity];
+
+        if(scale.length < size) scale = new double[size];
+        if(scratch.length < tagListSize) scratch = new double[tagListSize];
+    }
+
+    /**
+     * Adds the marginal probabilities of the nodes and paths of the tagger's lattice (built, costs calculated)
+     * to the expected counts of their features, same as {@link Node#calculateExpectation(double[], double, int)}
+     * of every node after {@link Tagger#forwardBackward()}.
+     *
+     * @return log of the partition function (z)
+     */
+    public double calculateExpectation(Tagger tagger,
+                                       double[] expected) {
+
+        ensureCapacity(tagger.inputColumnListSize(), tagger.getTagListSize());
+        TransitionConstraints constraints = tagger.getFeatureIndex().getTransitionConstraints();
+        int last = size - 1;
+        double logZ = 0.0;
+
+        // 1. potentials, relative to the max costs of each position.
+        // Paths left out (forbidden transitions) get 0, so that the recursions run over dense arrays
+        for(int cur=0; cur<size; cur++) {
+            int offset = cur * tagListSize;
+            int pathOffset = offset * tagListSize;
+            if(cur > 0 && constraints != null)
+                Arrays.fill(pathPotential, pathOffset, pathOffset + tagListSize * tagListSize, Double.NEGATIVE_INFINITY);
+
+            double maxNodeCost = Double.NEGATIVE_INFINITY;
+            double maxPathCost = Double.NEGATIVE_INFINITY;
+            for(int y=0; y<tagListSize; y++) {
+                Node node = tagger.getNodeAt(cur, y);
+                nodePotential[offset + y] = node.getCost();
+                maxNodeCost = Math.max(maxNodeCost, node.getCost());
+                for(Path path : node.getLeftPathList()) {
+                    pathPotential[pathOffset + path.getLNodeY() * tagListSize + y] = path.getCost();
+                    maxPathCost = Math.max(maxPathCost, path.getCost());
+                }
+            }
+
+            for(int y=0; y<tagListSize; y++) {
+                nodePotential[offset + y] = Math.exp(nodePotential[offset + y] - maxNodeCost);
+            }
+            // every path of the lattice has one node per position and one path per position but the first
+            logZ += maxNodeCost;
+            if(cur == 0) continue;
+            if(maxPathCost == Double.NEGATIVE_INFINITY)
+                throw new RuntimeException("No allowed path : the lattice has no path at " + cur);
+
+            for(int i=pathOffset; i<pathOffset + tagListSize * tagListSize; i++) {
+                pathPotential[i] = Math.exp(pathPotential[i] - maxPathCost);
+            }
+            logZ += maxPathCost;
+        }
+
+        // 2. forward : nodes which can't start the sequence or have no path to the left get 0
+        for(int cur=0; cur<size; cur++) {
+            int offset = cur * tagListSize;
+            int pathOffset = offset * tagListSize;
+            double sum = 0.0;
+            for(int y=0; y<tagListSize; y++) {
+                double a = 0.0;
+                if(cur == 0) {
+                    a = constraints != null && !constraints.isAllowedStart(y) ? 0.0 : 1.0;
+                } else {
+                    for(int lY=0; lY<tagListSize; lY++) {
+                        a += alpha[offset - tagListSize + lY] * pathPotential[pathOffset + lY * tagListSize + y];
+                    }
+                }
+
+                a *= nodePotential[offset + y];
+                alpha[offset + y] = a;
+                sum += a;
+            }
+
+            if(sum == 0.0)
+                throw new RuntimeException("No allowed path : the lattice has no node reachable at " + cur);
+
+            scale[cur] = sum;
+            double inverseSum = 1.0 / sum;
+            for(int y=0; y<tagListSize; y++) {
+                alpha[offset + y] *= inverseSum;
+            }
+        }
+
+        // 3. backward : nodes which can't end the sequence or have no path to the right get 0
+        int lastOffset = last * tagListSize;
+        for(int y=0; y<tagListSize; y++) {
+            beta[lastOffset + y] = constraints != null && !constraints.isAllowedEnd(y) ? 0.0 : 1.0;
+        }
+        for(int cur=last - 1; cur>=0; cur--) {
+            int offset = cur * tagListSize;
+            int nextOffset = offset + tagListSize;
+            int nextPathOffset = nextOffset * tagListSize;
+            double inverseScale = 1.0 / scale[cur + 1];
+            // node and beta of the next position, then paths to them
+            for(int rY=0; rY<tagListSize; rY++) {
+                beta[offset + rY] = nodePotential[nextOffset + rY] * beta[nextOffset + rY] * inverseScale;
+            }
+            for(int y=0; y<tagListSize; y++) {
+                double b = 0.0;
+                int row = nextPathOffset + y * tagListSize;
+                for(int rY=0; rY<tagListSize; rY++) {
+                    b += pathPotential[row + rY] * beta[offset + rY];
+                }
+                scratch[y] = b;
+            }
+            System.arraycopy(scratch, 0, beta, offset, tagListSize);
+        }
+
+        // 4. z : products of the scaling factors and of the allowed ends (1 without constraints)
+        double end = 0.0;
+        for(int y=0; y<tagListSize; y++) {
+            end += alpha[lastOffset + y] * beta[lastOffset + y];
+        }
+        if(end == 0.0) throw new RuntimeException("No allowed path : the lattice has no allowed end");
+
+        for(int cur=0; cur<size; cur++) {
+            logZ += Math.log(scale[cur]);
+        }
+        logZ += Math.log(end);
+
+        // 5. expectation : node alpha * beta, path alpha(left) * path * node(right) * beta(right), over z
+        double inverseEnd = 1.0 / end;
+        for(int cur=0; cur<size; cur++) {
+            int offset = cur * tagListSize;
+            double pathFactor = cur == 0 ? 0.0 : inverseEnd / scale[cur];
+            for(int y=0; y<tagListSize; y++) {
+                Node node = tagger.getNodeAt(cur, y);
+                node.incrementsExpected(expected, alpha[offset + y] * beta[offset + y] * inverseEnd);
+
+                double rightFactor = nodePotential[offset + y] * beta[offset + y] * pathFactor;
+                for(Path path : node.getLeftPathList()) {
+                    int lY = path.getLNodeY();
+                    double c = alpha[offset - tagListSize + lY] * pathPotential[(offset + lY) * tagListSize + y] * rightFactor;
+                    path.incrementsExpected(expected, c, tagListSize);
+                }
+            }
+        }
+        return logZ;
+    }
+}
@@ -0,0 +1,156 @@
+package io.github.ksshim.crf4j.mutation.lattice;
+
+import io.github.ksshim.crf4j.mutation.constants.TagScheme;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hard constraints on tag sequences : forbidden transitions (lY -> rY) and tags which can't
+ * start or end a sequence. Lattices never build forbidden paths, so they are neither searched
+ * nor counted in forward-backward.
+ * <p>
+ * Constraints are either listed explicitly or derived from the naming scheme of the tags
+ * ("B-X", "I-X", "E-X", "S-X" and "O"); tags which don't follow the scheme are unconstrained.
+ */
+public class TransitionConstraints {
+
+    private final int tagListSize;
+    // [lY * tagListSize + rY]
+    private final boolean[] allowedTransitions;
+    private final boolean[] allowedStarts;
+    private final boolean[] allowedEnds;
+
+    public TransitionConstraints(int tagListSize,
+                                 boolean[] allowedTransitions,
+                                 boolean[] allowedStarts,
+                                 boolean[] allowedEnds) {
+        if(allowedTransitions.length != tagListSize * tagListSize ||
+                allowedStarts.length != tagListSize || allowedEnds.length != tagListSize)
+            throw new RuntimeException("Invalid transition constraints size : " + tagListSize);
+
+        this.tagListSize = tagListSize;
+        this.allowedTransitions = allowedTransitions;
+        this.allowedStarts = allowedStarts;
+        this.allowedEnds = allowedEnds;
+    }
+
+    /**
+     * @param forbiddenTransitions (left tag, right tag) pairs never allowed, in addition to the scheme's
+     * @return constraints, null if nothing is forbidden
+     */
+    public static TransitionConstraints of(List<String> tagList,
+                                           TagScheme tagScheme,
+                                           List<Pair<String, String>> forbiddenTransitions) {
+        int tagListSize = tagList.size();
+        boolean[] allowedTransitions = new boolean[tagListSize * tagListSize];
+        boolean[] allowedStarts = new boolean[tagListSize];
+        boolean[] allowedEnds = new boolean[tagListSize];
+        Arrays.fill(allowedTransitions, true);
+        Arrays.fill(allowedStarts, true);
+        Arrays.fill(allowedEnds, true);
+
+        // 1. by scheme
+        if(tagScheme != TagScheme.NONE) {
+            for(int y=0; y<tagListSize; y++) {
+                allowedStarts[y] = isAllowed(tagScheme, "O", tagList.get(y));
+                allowedEnds[y] = isAllowed(tagScheme, tagList.get(y), "O");
+                for(int rY=0; rY<tagListSize; rY++) {
+                    allowedTransitions[y * tagListSize + rY] = isAllowed(tagScheme, tagList.get(y), tagList.get(rY));
+                }
+            }
+        }
+
+        // 2. explicit
+        if(forbiddenTransitions != null) {
+            for(Pair<String, String> transition : forbiddenTransitions) {
+                int lY = tagList.indexOf(transition.getLeft());
+                int rY = tagList.indexOf(transition.getRight());
+                if(lY == -1 || rY == -1) throw new RuntimeException("Unknown tag in transition : " + transition);
+
+                allowedTransitions[lY * tagListSize + rY] = false;
+            }
+        }
+
+        TransitionConstraints constraints =
+                new TransitionConstraints(tagListSize, allowedTransitions, allowedStarts, allowedEnds);
+        return constraints.isEmpty() ? null : constraints;
+    }
+
+    /**
+     * @return whether rTag can follow lTag ("O" stands for the outside of the sequence too)
+     */
+    private static boolean isAllowed(TagScheme tagScheme, String lTag, String rTag) {
+        char lPrefix = prefixOf(lTag);
+        char rPrefix = prefixOf(rTag);
+        boolean sameType = typeOf(lTag).equals(typeOf(rTag));
+
+        // inside/end of an entity must continue one of the same type
+        boolean continues = rPrefix == 'I' || (tagScheme == TagScheme.BIOES && rPrefix == 'E');
+        if(continues && !(sameType && (lPrefix == 'B' || lPrefix == 'I'))) return false;
+
+        // BIOES : begin/inside of an entity must be continued
+        if(tagScheme == TagScheme.BIOES && (lPrefix == 'B' || lPrefix == 'I'))
+            return sameType && (rPrefix == 'I' || rPrefix == 'E');
+
+        return true;
+    }
+
+    private static char prefixOf(String tag) {
+        if(tag.length() >= 2 && tag.charAt(1) == '-') return tag.charAt(0);
+        return tag.equals("O") ? 'O' : '?';
+    }
+
+    private static String typeOf(String tag) {
+        return prefixOf(tag) == '?' || prefixOf(tag) == 'O' ? "" : tag.substring(2);
+    }
+
+    private boolean isEmpty() {
+        for(boolean allowed : allowedTransitions) if(!allowed) return false;
+        for(boolean allowed : allowedStarts) if(!allowed) return false;
+        for(boolean allowed : allowedEnds) if(!allowed) return false;
+        return true;
+    }
+
+    public int tagListSize() {
+        return tagListSize;
+    }
+
+    public boolean isAllowed(int lY, int rY) {
+        return allowedTransitions[lY * tagListSize + rY];
+    }
+
+    public boolean isAllowedStart(int y) {
+        return allowedStarts[y];
+    }
+
+    public boolean isAllowedEnd(int y) {
+        return allowedEnds[y];
+    }
+
+    /**
+     * @return whether the tag sequence violates none of the constraints
+     */
+    public boolean isValid(List<Integer> tags) {
+        if(tags.isEmpty()) return true;
+        if(!allowedStarts[tags.get(0)] || !allowedEnds[tags.get(tags.size() - 1)]) return false;
+
+        for(int i=1; i<tags.size(); i++) {
+            if(!isAllowed(tags.get(i - 1), tags.get(i))) return false;
+        }
+        return true;
+    }
+
+    public boolean[] getAllowedTransitions() {
+        return allowedTransitions;
+    }
+
+    public boolean[] getAllowedStarts() {
+        return allowedStarts;
+    }
+
+    public boolean[] getAllowedEnds() {
+        return allowedEnds;
+    }
+}
@@ -0,0 +1,145 @@
+package io.github.ksshim.crf4j.mutation.metrics;
+
+import io.github.ksshim.crf4j.mutation.constants.DecodePhase;
+import lombok.extern.log4j.Log4j2;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Measurements of one decoded sentence : time spent in each phase, sequence length,
+ * lattice size, feature lookups and bytes allocated by the decoding thread.
+ * <p>
+ * Filled in by the tagger and reused for its next sentence.
+ */
+@Log4j2
+public class DecodeEvent {
+
+    // per-thread allocation counter of HotSpot, null if not available
+    private final static com.sun.management.ThreadMXBean THREAD_MX_BEAN = threadMXBean();
+
+    // [DecodePhase.ordinal()], -1 if the phase didn't run
+    private final long[] phaseNanos = new long[DecodePhase.values().length];
+    private long totalNanos;
+    private int sequenceLength;
+    private int tagListSize;
+    private int nodeSize;
+    private int featureLookups;
+    private int featureHits;
+    private long allocatedBytes;
+
+    private long startNanos;
+    private long lapNanos;
+    private long startAllocatedBytes;
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if(!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+
+            com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+            if(!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled())
+                return null;
+            return allocationBean;
+        } catch (Throwable e) {
+            log.warn("Allocated bytes are not measured : {}", e.toString());
+            return null;
+        }
+    }
+
+    private static long currentAllocatedBytes() {
+        return THREAD_MX_BEAN == null ? -1 : THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    //**********************************************************
+    // Recording (by the tagger)
+    //**********************************************************
+    public void start(int sequenceLength,
+                      int tagListSize) {
+        this.sequenceLength = sequenceLength;
+        this.tagListSize = tagListSize;
+        this.nodeSize = 0;
+        this.featureLookups = 0;
+        this.featureHits = 0;
+        Arrays.fill(phaseNanos, -1);
+
+        this.startAllocatedBytes = currentAllocatedBytes();
+        this.startNanos = System.nanoTime();
+        this.lapNanos = startNanos;
+    }
+
+    /**
+     * Ends the phase : the time since the end of the previous phase (or the start) is added to it.
+     */
+    public void lap(DecodePhase phase) {
+        long now = System.nanoTime();
+        int i = phase.ordinal();
+        phaseNanos[i] = Math.max(phaseNanos[i], 0) + (now - lapNanos);
+        lapNanos = now;
+    }
+
+    public void end(int featureLookups,
+                    int featureHits,
+                    int nodeSize) {
+        this.totalNanos = System.nanoTime() - startNanos;
+        this.featureLookups = featureLookups;
+        this.featureHits = featureHits;
+        this.nodeSize = nodeSize;
+        this.allocatedBytes = startAllocatedBytes == -1 ? -1 : currentAllocatedBytes() - startAllocatedBytes;
+    }
+
+    //**********************************************************
+    // Measurements
+    //**********************************************************
+    /**
+     * @return nanoseconds spent in the phase, -1 if it didn't run
+     */
+    public long getPhaseNanos(DecodePhase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public int getSequenceLength() {
+        return sequenceLength;
+    }
+
+    public int getTagListSize() {
+        return tagListSize;
+    }
+
+    /**
+     * @return number of lattice nodes, less than sequenceLength * tagListSize if tags were pruned
+     */
+    public int getNodeSize() {
+        return nodeSize;
+    }
+
+    /**
+     * @return number of feature lookups (templates applied at every position)
+     */
+    public int getFeatureLookups() {
+        return featureLookups;
+    }
+
+    /**
+     * @return number of features found in the model
+     */
+    public int getFeatureHits() {
+        return featureHits;
+    }
+
+    public int getFeatureMisses() {
+        return featureLookups - featureHits;
+    }
+
+    /**
+     * @return bytes allocated by the decoding thread while decoding the sentence,
+     * -1 if the JVM doesn't measure it
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+}
@@ -0,0 +1,13 @@
+package io.github.ksshim.crf4j.mutation.metrics;
+
+/**
+ * Receives the measurements of every sentence decoded by the taggers it is registered to
+ * (see {@link io.github.ksshim.crf4j.mutation.model.Model#setDecodeListener(DecodeListener)}).
+ * <p>
+ * Called by the decoding thread right after the sentence is decoded, possibly by many threads at once.
+ * The event is reused by the tagger : copy what is needed, don't keep it.
+ */
+public interface DecodeListener {
+
+    void onDecode(DecodeEvent event);
+}
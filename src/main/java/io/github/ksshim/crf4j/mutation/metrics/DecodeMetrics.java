@@ -0,0 +1,134 @@
+package io.github.ksshim.crf4j.mutation.metrics;
+
+import io.github.ksshim.crf4j.mutation.constants.DecodePhase;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link DecodeListener} which aggregates the decoded sentences : latency histograms (nanoseconds)
+ * of the whole decoding and of each phase, histograms of sequence lengths and allocated bytes,
+ * and feature lookup hits/misses.
+ * <p>
+ * Thread-safe : one instance can be registered to many models.
+ */
+public class DecodeMetrics implements DecodeListener {
+
+    private final Histogram[] phaseHistograms;
+    private final Histogram totalHistogram;
+    private final Histogram sequenceLengthHistogram;
+    private final Histogram allocatedBytesHistogram;
+    private final LongAdder nodeCount;
+    private final LongAdder featureLookupCount;
+    private final LongAdder featureHitCount;
+
+    public DecodeMetrics() {
+        this.phaseHistograms = new Histogram[DecodePhase.values().length];
+        for(int i=0; i<phaseHistograms.length; i++) {
+            phaseHistograms[i] = new Histogram();
+        }
+        this.totalHistogram = new Histogram();
+        this.sequenceLengthHistogram = new Histogram();
+        this.allocatedBytesHistogram = new Histogram();
+        this.nodeCount = new LongAdder();
+        this.featureLookupCount = new LongAdder();
+        this.featureHitCount = new LongAdder();
+    }
+
+    @Override
+    public void onDecode(DecodeEvent event) {
+        for(DecodePhase phase : DecodePhase.values()) {
+            long nanos = event.getPhaseNanos(phase);
+            if(nanos >= 0) phaseHistograms[phase.ordinal()].record(nanos);
+        }
+        totalHistogram.record(event.getTotalNanos());
+        sequenceLengthHistogram.record(event.getSequenceLength());
+        if(event.getAllocatedBytes() >= 0) allocatedBytesHistogram.record(event.getAllocatedBytes());
+
+        nodeCount.add(event.getNodeSize());
+        featureLookupCount.add(event.getFeatureLookups());
+        featureHitCount.add(event.getFeatureHits());
+    }
+
+    /**
+     * @return latencies (nanoseconds) of the phase, counting only sentences which ran it
+     */
+    public Histogram getPhaseHistogram(DecodePhase phase) {
+        return phaseHistograms[phase.ordinal()];
+    }
+
+    /**
+     * @return latencies (nanoseconds) of whole sentences
+     */
+    public Histogram getTotalHistogram() {
+        return totalHistogram;
+    }
+
+    public Histogram getSequenceLengthHistogram() {
+        return sequenceLengthHistogram;
+    }
+
+    /**
+     * @return bytes allocated by sentence, empty if the JVM doesn't measure them
+     */
+    public Histogram getAllocatedBytesHistogram() {
+        return allocatedBytesHistogram;
+    }
+
+    public long getSentenceCount() {
+        return totalHistogram.getCount();
+    }
+
+    public long getNodeCount() {
+        return nodeCount.sum();
+    }
+
+    public long getFeatureLookupCount() {
+        return featureLookupCount.sum();
+    }
+
+    public long getFeatureHitCount() {
+        return featureHitCount.sum();
+    }
+
+    public long getFeatureMissCount() {
+        return getFeatureLookupCount() - getFeatureHitCount();
+    }
+
+    /**
+     * @return ratio of feature lookups found in the model
+     */
+    public double featureHitRate() {
+        long lookups = getFeatureLookupCount();
+        return lookups == 0 ? 0.0 : (double) getFeatureHitCount() / lookups;
+    }
+
+    public void reset() {
+        for(Histogram histogram : phaseHistograms) {
+            histogram.reset();
+        }
+        totalHistogram.reset();
+        sequenceLengthHistogram.reset();
+        allocatedBytesHistogram.reset();
+        nodeCount.reset();
+        featureLookupCount.reset();
+        featureHitCount.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sentences : ").append(getSentenceCount()).append('\n');
+        sb.append("total (ns) : ").append(totalHistogram).append('\n');
+        for(DecodePhase phase : DecodePhase.values()) {
+            Histogram histogram = phaseHistograms[phase.ordinal()];
+            if(histogram.getCount() == 0) continue;
+
+            sb.append(phase.name().toLowerCase()).append(" (ns) : ").append(histogram).append('\n');
+        }
+        sb.append("sequence length : ").append(sequenceLengthHistogram).append('\n');
+        sb.append("allocated bytes : ").append(allocatedBytesHistogram).append('\n');
+        sb.append(String.format("nodes : %d, feature lookups : %d, hits : %d, misses : %d, hit rate : %.4f",
+                getNodeCount(), getFeatureLookupCount(), getFeatureHitCount(), getFeatureMissCount(), featureHitRate()));
+        return sb.toString();
+    }
+}
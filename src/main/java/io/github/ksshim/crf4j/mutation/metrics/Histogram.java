@@ -0,0 +1,107 @@
+package io.github.ksshim.crf4j.mutation.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values (e.g. nanoseconds) in log-linear buckets :
+ * values below 16 are counted exactly, others within 1/16 of their value.
+ * <p>
+ * Thread-safe. Reads made while values are being recorded may be slightly inconsistent.
+ */
+public class Histogram {
+
+    private final static int SUB_BUCKET_BITS = 4;
+    private final static int SUB_BUCKET_SIZE = 1 << SUB_BUCKET_BITS;
+    // values below SUB_BUCKET_SIZE, then SUB_BUCKET_SIZE buckets by power of two up to Long.MAX_VALUE
+    private final static int BUCKET_SIZE = SUB_BUCKET_SIZE * (64 - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_SIZE);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    public void record(long value) {
+        if(value < 0) value = 0;
+
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    private static int bucketOf(long value) {
+        if(value < SUB_BUCKET_SIZE) return (int) value;
+
+        // the highest SUB_BUCKET_BITS + 1 bits of the value
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_SIZE * (shift + 1) + (int) ((value >>> shift) - SUB_BUCKET_SIZE);
+    }
+
+    /**
+     * @return largest value of the bucket
+     */
+    private static long upperBoundOf(int bucket) {
+        if(bucket < SUB_BUCKET_SIZE) return bucket;
+
+        int shift = bucket / SUB_BUCKET_SIZE - 1;
+        long subBucket = bucket % SUB_BUCKET_SIZE;
+        // overflows to Long.MAX_VALUE for the last bucket
+        return ((SUB_BUCKET_SIZE + subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0.0 : (double) getSum() / n;
+    }
+
+    /**
+     * @param percentile in [0, 100]
+     * @return value which percentile % of the recorded values don't exceed (upper bound of its bucket), 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        if(percentile < 0.0 || percentile > 100.0) throw new RuntimeException("Invalid percentile : " + percentile);
+
+        long total = 0;
+        for(int i=0; i<BUCKET_SIZE; i++) {
+            total += counts.get(i);
+        }
+        if(total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for(int i=0; i<BUCKET_SIZE; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min(upperBoundOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for(int i=0; i<BUCKET_SIZE; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+    }
+}
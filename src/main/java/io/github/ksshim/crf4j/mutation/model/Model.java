@@ -1,45 +1,253 @@
 package io.github.ksshim.crf4j.mutation.model;
 
+import io.github.ksshim.crf4j.mutation.constants.WeightType;
 import io.github.ksshim.crf4j.mutation.feature.DecodeFeatureIndex;
+import io.github.ksshim.crf4j.mutation.feature.FeatureIdCache;
+import io.github.ksshim.crf4j.mutation.feature.quantizer.WeightQuantizer;
 import io.github.ksshim.crf4j.mutation.feature.serializer.FeatureIndexSerializer;
+import io.github.ksshim.crf4j.mutation.metrics.DecodeListener;
 import io.github.ksshim.crf4j.mutation.model.formatter.InputFormatter;
 import io.github.ksshim.crf4j.mutation.tagger.DecodeTagger;
+import io.github.ksshim.crf4j.mutation.tagger.StreamingTagger;
 import io.github.ksshim.crf4j.mutation.tagger.Tagger;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
+/**
+ * Loaded CRF model.
+ * <p>
+ * The feature-index (templates, tags, trie and weights) is never modified after loading,
+ * so one model can be shared by many threads. Taggers are cheap per-thread workspaces
+ * holding the per-call state (cost factor, lattice and feature buffers) and are NOT thread-safe :
+ * either create one tagger per thread with {@link #createTagger(double)} or use
+ * {@link #doLabel(String, double, InputFormatter)} which uses a tagger bound to the calling thread.
+ * Batches can be labeled in parallel with {@link #doLabelBatch(List, double, InputFormatter, ExecutorService)}
+ * or {@link #doLabelStream(Stream, double, InputFormatter)}.
+ * <p>
+ * A model in the binary format ({@link io.github.ksshim.crf4j.mutation.constants.ModelFormat#BINARY})
+ * is memory-mapped : loading takes near-constant time and processes on one host share its pages.
+ * <p>
+ * Results of {@link #doLabel(String, double, InputFormatter)} can be cached with
+ * {@link #enableResultCache(long, long)}; the cache is keyed by the formatted input and the cost factor
+ * and is invalidated by {@link #reload()}.
+ */
 @Log4j2
 public class Model {
 
-    private final DecodeFeatureIndex featureIndex;
+    private final String inModelFilePath;
+    private final WeightType weightType;
+
+    private volatile DecodeFeatureIndex featureIndex;
+    // tagger of each thread, recreated on its next call after a reload
+    private final ThreadLocal<DecodeTagger> workspace;
+    // increased on reload, part of cache keys so that results of an old model are never hit
+    private volatile int generation;
+    private volatile ResultCache resultCache;
+    // max entries of the feature-id cache, 0 if disabled
+    private volatile int featureIdCacheSize;
+    // optional, kept across reloads
+    private volatile DecodeListener decodeListener;
 
     public Model(String inModelFilePath) {
-        this.featureIndex = createDecodeFeatureIndex(inModelFilePath);
+        this(inModelFilePath, WeightType.DOUBLE);
+    }
+
+    /**
+     * @param weightType type the weights are quantized to after loading (DOUBLE : not quantized)
+     */
+    public Model(String inModelFilePath, WeightType weightType) {
+        this.inModelFilePath = inModelFilePath;
+        this.weightType = weightType;
+        this.featureIndex = createDecodeFeatureIndex(inModelFilePath, weightType);
+        this.workspace = ThreadLocal.withInitial(this::createTagger);
+    }
+
+    /**
+     * Reloads the model file and invalidates cached results.
+     * Calls in progress finish with the old model; taggers created before keep using it.
+     * The taggers of the calling threads are replaced on their next call, so the old model isn't kept by them.
+     */
+    public synchronized void reload() {
+        DecodeFeatureIndex newFeatureIndex = createDecodeFeatureIndex(inModelFilePath, weightType);
+        if(featureIdCacheSize > 0) newFeatureIndex.setFeatureIdCache(new FeatureIdCache(featureIdCacheSize));
+        newFeatureIndex.setDecodeListener(decodeListener);
+
+        this.featureIndex = newFeatureIndex;
+        this.generation++;
+
+        ResultCache cache = resultCache;
+        if(cache != null) cache.invalidateAll();
+        log.info("Reloaded model : {}", inModelFilePath);
+    }
+
+    /**
+     * Caches feature ids by (template, window of column values), shared by all taggers of this model.
+     * Repeated windows (e.g. characters in character-level tasks) then skip building the feature string
+     * and searching the trie.
+     *
+     * @param maxEntries max number of cached feature ids
+     */
+    public synchronized void enableFeatureIdCache(int maxEntries) {
+        featureIndex.setFeatureIdCache(new FeatureIdCache(maxEntries));
+        this.featureIdCacheSize = maxEntries;
+    }
+
+    public synchronized void disableFeatureIdCache() {
+        featureIndex.setFeatureIdCache(null);
+        this.featureIdCacheSize = 0;
+    }
+
+    /**
+     * Measures every sentence decoded by the taggers of this model (phase latencies, sequence length,
+     * feature lookups, allocated bytes), e.g. with {@link io.github.ksshim.crf4j.mutation.metrics.DecodeMetrics}.
+     * Taggers check for a listener once per sentence, so decoding costs nothing more without one.
+     * Sentences whose results come from the result cache are not decoded, hence not measured.
+     *
+     * @param decodeListener listener, null to stop measuring
+     */
+    public synchronized void setDecodeListener(DecodeListener decodeListener) {
+        featureIndex.setDecodeListener(decodeListener);
+        this.decodeListener = decodeListener;
+    }
+
+    public DecodeListener getDecodeListener() {
+        return decodeListener;
+    }
+
+    /**
+     * Caches results of {@link #doLabel(String, double, InputFormatter)} in a bounded LRU cache.
+     *
+     * @param maxEntries max number of cached results
+     * @param maxBytes max estimated size of cached results in bytes
+     */
+    public void enableResultCache(long maxEntries, long maxBytes) {
+        this.resultCache = new ResultCache(maxEntries, maxBytes);
+    }
+
+    public void disableResultCache() {
+        this.resultCache = null;
+    }
+
+    /**
+     * @return result cache (for hit/miss/eviction counters), null if disabled
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
     }
 
-    private DecodeFeatureIndex createDecodeFeatureIndex(String inModelFilePath) {
+    private DecodeFeatureIndex createDecodeFeatureIndex(String inModelFilePath,
+                                                        WeightType weightType) {
         DecodeFeatureIndex featureIndex = new DecodeFeatureIndex();
         try {
             FeatureIndexSerializer.read(featureIndex, inModelFilePath);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        WeightQuantizer.quantize(featureIndex, weightType);
         return featureIndex;
     }
 
+    public WeightType getWeightType() {
+        return featureIndex.getWeightType();
+    }
+
     public DecodeTagger createTagger() {
         return createTagger(1.0);
     }
 
     public DecodeTagger createTagger(double costFactor) {
+        return createTagger(costFactor, false);
+    }
+
+    /**
+     * @param marginal if true, the tagger also calculates marginal probabilities of tags and
+     *                 the probability of the best path while parsing (one more pass over the lattice).
+     */
+    public DecodeTagger createTagger(double costFactor, boolean marginal) {
         DecodeTagger tagger = new DecodeTagger();
+        tagger.setMarginal(marginal);
         return (DecodeTagger) tagger.open(featureIndex, costFactor);
     }
 
+    /**
+     * @param maxLag max number of positions a label may wait for its paths to converge
+     * @return online decoder for sequences labeled token by token, see {@link StreamingTagger}
+     */
+    public StreamingTagger createStreamingTagger(double costFactor, int maxLag) {
+        return new StreamingTagger(featureIndex, costFactor, maxLag);
+    }
+
+    public List<String> doLabel(String input,
+                                InputFormatter inputFormatter) {
+        return doLabel(input, 1.0, inputFormatter);
+    }
+
+    /**
+     * Labels input with the calling thread's own tagger, so it can be called from any thread.
+     * If the result cache is enabled, a cached result of the same formatted input and cost factor is reused.
+     */
+    public List<String> doLabel(String input,
+                                double costFactor,
+                                InputFormatter inputFormatter) {
+        ResultCache cache = resultCache;
+        int currentGeneration = generation;
+
+        DecodeTagger tagger = workspaceTagger();
+        tagger.clear();
+        tagger.setCostFactor(costFactor);
+        if(cache == null) return doLabel(input, tagger, inputFormatter);
+
+        if(StringUtils.isBlank(input)) return Collections.emptyList();
+
+        // 1. format and look up
+        inputFormatter.format(input, tagger);
+        String key = cacheKeyOf(currentGeneration, tagger);
+        List<String> cached = cache.get(key);
+        if(cached != null) return new LinkedList<>(cached);
+
+        // 2. label and cache
+        tagger.parse();
+        List<String> labelList = labelsOf(tagger);
+        cache.put(key, new ArrayList<>(labelList));
+        return labelList;
+    }
+
+    /**
+     * @return tagger of the calling thread, on the current feature-index
+     */
+    private DecodeTagger workspaceTagger() {
+        DecodeTagger tagger = workspace.get();
+        if(tagger.getFeatureIndex() == featureIndex) return tagger;
+
+        // reloaded : drop the tagger of the old feature-index
+        tagger = createTagger();
+        workspace.set(tagger);
+        return tagger;
+    }
+
+    private static String cacheKeyOf(int generation,
+                                     Tagger tagger) {
+        StringBuilder sb = tagger.getFeatureBuffer();
+        sb.setLength(0);
+        sb.append(generation).append('\t').append(tagger.getCostFactor());
+        for(String[] columns : tagger.getInputColumnsList()) {
+            sb.append('\n');
+            for(int i=0; i<columns.length; i++) {
+                if(i > 0) sb.append('\t');
+                sb.append(columns[i]);
+            }
+        }
+        return sb.toString();
+    }
+
     public List<String> doLabel(String input,
                                 Tagger tagger,
                                 InputFormatter inputFormatter) {
@@ -47,11 +255,151 @@ public class Model {
 
         inputFormatter.format(input, tagger);
         tagger.parse();
+        return labelsOf(tagger);
+    }
+
+    /**
+     * Labels input with the calling thread's own tagger, with the tags of some positions fixed
+     * or restricted beforehand (e.g. by a gazetteer). The result cache is not used.
+     *
+     * @param allowedTags allowed tags by position (row of the formatted input)
+     */
+    public List<String> doLabel(String input,
+                                Map<Integer, ? extends Collection<String>> allowedTags,
+                                double costFactor,
+                                InputFormatter inputFormatter) {
+        if(StringUtils.isBlank(input)) return Collections.emptyList();
+
+        DecodeTagger tagger = workspaceTagger();
+        tagger.clear();
+        tagger.setCostFactor(costFactor);
+
+        inputFormatter.format(input, tagger);
+        for(Map.Entry<Integer, ? extends Collection<String>> entry : allowedTags.entrySet()) {
+            if(entry.getKey() >= tagger.inputColumnListSize())
+                throw new RuntimeException("Invalid position : " + entry.getKey());
 
+            tagger.setAllowedTagsAt(entry.getKey(), entry.getValue());
+        }
+        tagger.parse();
+        return labelsOf(tagger);
+    }
+
+    private static List<String> labelsOf(Tagger tagger) {
         List<String> labelList = new LinkedList<>();
         for(int i=0; i<tagger.inputColumnListSize(); i++) {
             labelList.add(tagger.getTagAt(tagger.getResultAt(i)));
         }
         return labelList;
     }
+
+    public List<Pair<List<String>, Double>> doLabelNBest(String input,
+                                                        int n,
+                                                        InputFormatter inputFormatter) {
+        return doLabelNBest(input, n, 1.0, inputFormatter);
+    }
+
+    /**
+     * Labels input with the calling thread's own tagger and returns the n best labelings,
+     * best first, each with its cost (lower is better). The first labeling may differ from
+     * {@link #doLabel} without transition constraints (see {@link DecodeTagger#parseNBest(int)}).
+     */
+    public List<Pair<List<String>, Double>> doLabelNBest(String input,
+                                                        int n,
+                                                        double costFactor,
+                                                        InputFormatter inputFormatter) {
+        if(StringUtils.isBlank(input)) return Collections.emptyList();
+
+        DecodeTagger tagger = workspaceTagger();
+        tagger.clear();
+        tagger.setCostFactor(costFactor);
+
+        inputFormatter.format(input, tagger);
+        int found = tagger.parseNBest(n);
+
+        List<Pair<List<String>, Double>> resultList = new ArrayList<>(found);
+        for(int k=0; k<found; k++) {
+            List<String> labelList = new ArrayList<>(tagger.inputColumnListSize());
+            for(int i=0; i<tagger.inputColumnListSize(); i++) {
+                labelList.add(tagger.getTagAt(tagger.getNBestResultAt(k, i)));
+            }
+            resultList.add(Pair.of(labelList, tagger.getNBestCostAt(k)));
+        }
+        return resultList;
+    }
+
+    public List<List<String>> doLabelBatch(List<String> inputList,
+                                           InputFormatter inputFormatter) {
+        return doLabelBatch(inputList, 1.0, inputFormatter, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Labels all inputs in parallel on the executor and returns the labels in input order.
+     * Every worker thread labels its share with its own reusable tagger.
+     */
+    public List<List<String>> doLabelBatch(List<String> inputList,
+                                           double costFactor,
+                                           InputFormatter inputFormatter,
+                                           ExecutorService executor) {
+        if(inputList.isEmpty()) return Collections.emptyList();
+
+        long startTime = System.nanoTime();
+
+        List<String> inputs = inputList instanceof RandomAccess ? inputList : new ArrayList<>(inputList);
+        List<List<String>> results = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+
+        // 1. each task labels every nTasks-th input
+        int nTasks = Math.min(inputs.size(), parallelismOf(executor));
+        List<Callable<Integer>> tasks = new ArrayList<>(nTasks);
+        for(int i=0; i<nTasks; i++) {
+            final int startIndex = i;
+            tasks.add(() -> {
+                int count = 0;
+                for(int j = startIndex; j < inputs.size(); j += nTasks, count++) {
+                    results.set(j, doLabel(inputs.get(j), costFactor, inputFormatter));
+                }
+                return count;
+            });
+        }
+
+        // 2. start and wait until all done
+        try {
+            for(Future<Integer> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        // 3. report throughput
+        double elapsedMillis = (System.nanoTime() - startTime) / 1e6;
+        log.info("Labeled {} inputs with {} tasks in {} ms ({} inputs/sec)",
+                inputs.size(), nTasks, String.format("%.1f", elapsedMillis),
+                String.format("%.1f", inputs.size() * 1000.0 / Math.max(elapsedMillis, 1e-3)));
+
+        return results;
+    }
+
+    private static int parallelismOf(ExecutorService executor) {
+        if(executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getParallelism();
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public Stream<List<String>> doLabelStream(Stream<String> inputStream,
+                                              InputFormatter inputFormatter) {
+        return doLabelStream(inputStream, 1.0, inputFormatter);
+    }
+
+    /**
+     * Lazily labels a stream of inputs. For a parallel stream each worker uses its own tagger;
+     * encounter order is kept by ordered terminal operations (e.g. {@code collect}, {@code forEachOrdered}).
+     */
+    public Stream<List<String>> doLabelStream(Stream<String> inputStream,
+                                              double costFactor,
+                                              InputFormatter inputFormatter) {
+        return inputStream.map(input -> doLabel(input, costFactor, inputFormatter));
+    }
 }
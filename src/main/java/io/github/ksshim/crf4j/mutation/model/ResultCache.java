@@ -0,0 +1,178 @@
+package io.github.ksshim.crf4j.mutation.model;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of labeling results, safe for concurrent use.
+ * <p>
+ * Entries are spread over segments by key hash; every segment is an access-ordered map
+ * bounded by its share of maxEntries and of maxBytes (an estimate of key and result sizes),
+ * so the least recently used entries of a segment are evicted first. The shares add up to the bounds;
+ * small bounds get fewer segments, so that each segment has at least one entry and byte.
+ */
+public class ResultCache {
+
+    // max number of segments, a power of 2
+    private final static int MAX_SEGMENT_SIZE = 16;
+    // rough bytes of an entry besides key chars and result references
+    private final static int ENTRY_OVERHEAD = 96;
+
+    private final long maxEntries;
+    private final long maxBytes;
+    private final Segment[] segments;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param maxEntries max number of entries, Long.MAX_VALUE if unbounded
+     * @param maxBytes max estimated size of entries in bytes, Long.MAX_VALUE if unbounded
+     */
+    public ResultCache(long maxEntries, long maxBytes) {
+        if(maxEntries <= 0) throw new RuntimeException("maxEntries must be > 0");
+        if(maxBytes <= 0) throw new RuntimeException("maxBytes must be > 0");
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        int segmentSize = (int) Long.highestOneBit(Math.min(MAX_SEGMENT_SIZE, Math.min(maxEntries, maxBytes)));
+        this.segments = new Segment[segmentSize];
+        for(int i=0; i<segmentSize; i++) {
+            segments[i] = new Segment(
+                    shareOf(maxEntries, segmentSize, i),
+                    shareOf(maxBytes, segmentSize, i));
+        }
+    }
+
+    /**
+     * @return share of bound of segment i, the remainder spread over the first segments
+     */
+    private static long shareOf(long bound,
+                                int segmentSize,
+                                int i) {
+        if(bound == Long.MAX_VALUE) return Long.MAX_VALUE;
+
+        return bound / segmentSize + (i < bound % segmentSize ? 1 : 0);
+    }
+
+    /**
+     * @return cached result of key, null if not cached
+     */
+    public List<String> get(String key) {
+        List<String> result = segmentOf(key).get(key);
+        if(result == null) missCount.increment();
+        else hitCount.increment();
+        return result;
+    }
+
+    public void put(String key, List<String> result) {
+        segmentOf(key).put(key, Collections.unmodifiableList(result));
+    }
+
+    public void invalidateAll() {
+        for(Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for(Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public double hitRate() {
+        long hits = getHitCount();
+        long requests = hits + getMissCount();
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache(size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() +
+                ", evictions=" + getEvictionCount() + ", hitRate=" + String.format("%.4f", hitRate()) + ")";
+    }
+
+    private Segment segmentOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static long bytesOf(String key, List<String> result) {
+        // tags are shared strings of the model, so a result costs a reference per label
+        return ENTRY_OVERHEAD + 2L * key.length() + 8L * result.size();
+    }
+
+    private class Segment {
+
+        private final long maxEntries;
+        private final long maxBytes;
+        private final LinkedHashMap<String, List<String>> map;
+        private long bytes;
+
+        Segment(long maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.map = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        synchronized List<String> get(String key) {
+            return map.get(key);
+        }
+
+        synchronized void put(String key, List<String> result) {
+            long entryBytes = bytesOf(key, result);
+            if(entryBytes > maxBytes) return;
+
+            List<String> old = map.put(key, result);
+            if(old != null) bytes -= bytesOf(key, old);
+            bytes += entryBytes;
+
+            // evict least recently used
+            Iterator<Map.Entry<String, List<String>>> it = map.entrySet().iterator();
+            while(map.size() > maxEntries || bytes > maxBytes) {
+                Map.Entry<String, List<String>> eldest = it.next();
+                bytes -= bytesOf(eldest.getKey(), eldest.getValue());
+                it.remove();
+                evictionCount.increment();
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            bytes = 0;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
@@ -1,15 +1,100 @@
 package io.github.ksshim.crf4j.mutation.tagger;
 
-import io.github.ksshim.crf4j.mutation.lattice.Node;
+import io.github.ksshim.crf4j.mutation.constants.DecodePhase;
+import io.github.ksshim.crf4j.mutation.feature.DecodeFeatureIndex;
+import io.github.ksshim.crf4j.mutation.lattice.ArrayLattice;
+import io.github.ksshim.crf4j.mutation.metrics.DecodeEvent;
+import io.github.ksshim.crf4j.mutation.metrics.DecodeListener;
 import lombok.Data;
 import lombok.extern.log4j.Log4j2;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
 @Log4j2
 @Data
 public class DecodeTagger extends Tagger {
 
+    private final ArrayLattice lattice;
+    // if true, parse() also calculates marginal probabilities
+    private boolean marginal;
+    // optional, allowed tags (ascending indexes) by position, null if all tags. Cleared by clear()
+    private final List<int[]> allowedTagsList;
+    // optional, takes the place of the decode listener of the feature-index
+    private DecodeListener decodeListener;
+    // reused by every measured sentence
+    private final DecodeEvent decodeEvent;
+
     public DecodeTagger() {
         super();
+        this.lattice = new ArrayLattice();
+        this.allowedTagsList = new ArrayList<>();
+        this.decodeEvent = new DecodeEvent();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        allowedTagsList.clear();
+    }
+
+    //**********************************************************
+    // Partial labels
+    //**********************************************************
+    /**
+     * Pins the tag at index : the lattice keeps only that tag there.
+     */
+    public void fixTagAt(int index, int tagIndex) {
+        setAllowedTagsAt(index, tagIndex);
+    }
+
+    public void fixTagAt(int index, String tag) {
+        fixTagAt(index, tagIndexOf(tag));
+    }
+
+    /**
+     * Restricts the tags at index : the lattice keeps only these tags there.
+     * It replaces the tag dictionary at index, but transition constraints still apply,
+     * so parse() fails if no allowed path is left.
+     */
+    public void setAllowedTagsAt(int index, int... tagIndexes) {
+        if(index < 0) throw new RuntimeException("Invalid index : " + index);
+        if(tagIndexes.length == 0) throw new RuntimeException("No allowed tags at " + index);
+
+        int[] tags = Arrays.copyOf(tagIndexes, tagIndexes.length);
+        Arrays.sort(tags);
+        int size = 0;
+        for(int tag : tags) {
+            if(tag < 0 || tag >= featureIndex.tagListSize()) throw new RuntimeException("Invalid tag index : " + tag);
+            if(size == 0 || tags[size - 1] != tag) tags[size++] = tag;
+        }
+
+        while(allowedTagsList.size() <= index) allowedTagsList.add(null);
+        allowedTagsList.set(index, Arrays.copyOf(tags, size));
+    }
+
+    public void setAllowedTagsAt(int index, Collection<String> tags) {
+        int[] tagIndexes = new int[tags.size()];
+        int i = 0;
+        for(String tag : tags) {
+            tagIndexes[i++] = tagIndexOf(tag);
+        }
+        setAllowedTagsAt(index, tagIndexes);
+    }
+
+    /**
+     * @return allowed tags (ascending indexes) at index, null if not restricted
+     */
+    public int[] getAllowedTagsAt(int index) {
+        return index < allowedTagsList.size() ? allowedTagsList.get(index) : null;
+    }
+
+    private int tagIndexOf(String tag) {
+        int tagIndex = featureIndex.getTagList().indexOf(tag);
+        if(tagIndex == -1) throw new RuntimeException("Unknown tag : " + tag);
+        return tagIndex;
     }
 
     public void add(String line) {
@@ -21,6 +106,145 @@ public class DecodeTagger extends Tagger {
 
         inputColumnsList.add(cols);
         resultList.add(0);
-        nodesList.add(new Node[tagListSize]);
+    }
+
+    //**********************************************************
+    // Decoding
+    //**********************************************************
+    /**
+     * @return listener of this tagger, or else of the feature-index, null if none
+     */
+    private DecodeListener activeDecodeListener() {
+        if(decodeListener != null) return decodeListener;
+
+        return featureIndex instanceof DecodeFeatureIndex ?
+                ((DecodeFeatureIndex) featureIndex).getDecodeListener() : null;
+    }
+
+    /**
+     * Same as {@link Tagger#parse()}, measuring the phases if a decode listener is set.
+     */
+    @Override
+    public void parse() {
+        DecodeListener listener = activeDecodeListener();
+        DecodeEvent event = listener != null ? startEvent() : null;
+
+        featureIndex.buildFeatures(this);
+        if(event != null) event.lap(DecodePhase.FEATURES);
+
+        if(!inputColumnsList.isEmpty()) {
+            buildLattice(event);
+            viterbi(event);
+        }
+
+        if(event != null) endEvent(listener, event);
+    }
+
+    @Override
+    public void buildLattice() {
+        buildLattice(null);
+    }
+
+    private void buildLattice(DecodeEvent event) {
+        if(inputColumnsList.isEmpty()) return;
+
+        lattice.buildStructure(featureIndex, this);
+        if(event != null) event.lap(DecodePhase.LATTICE);
+
+        lattice.calculateCosts(featureIndex, this);
+        if(event != null) event.lap(DecodePhase.COSTS);
+    }
+
+    @Override
+    public void viterbi() {
+        viterbi(null);
+    }
+
+    private void viterbi(DecodeEvent event) {
+        cost = lattice.viterbi(resultList);
+        if(event != null) event.lap(DecodePhase.VITERBI);
+
+        if(!marginal) return;
+
+        lattice.forwardBackward();
+        z = lattice.getZ();
+        if(event != null) event.lap(DecodePhase.MARGINALS);
+    }
+
+    private DecodeEvent startEvent() {
+        decodeEvent.start(inputColumnsList.size(), tagListSize);
+        return decodeEvent;
+    }
+
+    private void endEvent(DecodeListener listener,
+                          DecodeEvent event) {
+        // features found in the model
+        int hits = featureIdListCache.idSize() - featureIdListCache.offsetOf(featureIdListIndex);
+        int size = inputColumnsList.size();
+        int lookups = size * featureIndex.getCompiledUniGramTemplates().length +
+                Math.max(0, size - 1) * featureIndex.getCompiledBiGramTemplates().length;
+
+        event.end(lookups, hits, size == 0 ? 0 : lattice.candidateSize());
+        listener.onDecode(event);
+    }
+
+    /**
+     * @return probability of the labels of the result (by the score of the whole sequence, see
+     * {@link ArrayLattice#scoreOf(List)}). Valid only in marginal mode.
+     */
+    public double getProb() {
+        return Math.exp(lattice.scoreOf(resultList) - z);
+    }
+
+    /**
+     * @return marginal probability of the tag at index. Valid only in marginal mode.
+     */
+    public double getMarginalAt(int index, int tagIndex) {
+        return lattice.getMarginalAt(index, tagIndex);
+    }
+
+    /**
+     * @return marginal probability of the best tag at index. Valid only in marginal mode.
+     */
+    public double getResultMarginalAt(int index) {
+        return getMarginalAt(index, getResultAt(index));
+    }
+
+    /**
+     * Builds the lattice and finds the n best paths (best first) by a backward A* search.
+     * Results are available through {@link #getNBestResultAt(int, int)} and {@link #getNBestCostAt(int)}.
+     * The search is exact, so the first path may differ from the result of {@link #parse()} when the lattice
+     * is not constrained (see {@link ArrayLattice#nbest(int)}).
+     *
+     * @return number of paths found (at most n)
+     */
+    public int parseNBest(int n) {
+        DecodeListener listener = activeDecodeListener();
+        DecodeEvent event = listener != null ? startEvent() : null;
+
+        featureIndex.buildFeatures(this);
+        if(event != null) event.lap(DecodePhase.FEATURES);
+
+        int nBestSize = 0;
+        if(!inputColumnsList.isEmpty()) {
+            buildLattice(event);
+            nBestSize = lattice.nbest(n);
+            if(event != null) event.lap(DecodePhase.NBEST);
+        }
+
+        if(event != null) endEvent(listener, event);
+        return nBestSize;
+    }
+
+    public int nBestSize() {
+        return lattice.nBestSize();
+    }
+
+    public int getNBestResultAt(int k, int index) {
+        return lattice.getNBestResultAt(k, index);
+    }
+
+    public double getNBestCostAt(int k) {
+        return lattice.getNBestCostAt(k);
     }
 }
@@ -2,6 +2,7 @@ package io.github.ksshim.crf4j.mutation.tagger;
 
 import io.github.ksshim.crf4j.mutation.lattice.Node;
 import io.github.ksshim.crf4j.mutation.lattice.Path;
+import io.github.ksshim.crf4j.mutation.lattice.ScaledForwardBackward;
 import lombok.Data;
 import lombok.extern.log4j.Log4j2;
 
@@ -29,18 +30,32 @@ public class EncodeTagger extends Tagger {
     }
 
     public double gradient(double[] expected) {
+        return gradient(expected, null);
+    }
+
+    /**
+     * @param scaledForwardBackward workspace of the probability-space forward-backward,
+     *                              null for the log-space one
+     */
+    public double gradient(double[] expected,
+                           ScaledForwardBackward scaledForwardBackward) {
 
         if(inputColumnsList.isEmpty()) return 0.0;
 
         buildLattice();
-        // calculate alpha/beta/z
-        forwardBackward();
-
-        // 1. calculate expectation of all nodes
-        for(int i=0; i<inputColumnsList.size(); i++) {
-            for(int j=0; j<tagListSize; j++) {
-                nodesList.get(i)[j].calculateExpectation(expected, z, tagListSize);
+        if(scaledForwardBackward == null) {
+            // calculate alpha/beta/z
+            forwardBackward();
+
+            // 1. calculate expectation of all nodes
+            for(int i=0; i<inputColumnsList.size(); i++) {
+                for(int j=0; j<tagListSize; j++) {
+                    nodesList.get(i)[j].calculateExpectation(expected, z, tagListSize);
+                }
             }
+        } else {
+            // 1. calculate z and expectation of all nodes (alpha/beta of the nodes are left unset)
+            z = scaledForwardBackward.calculateExpectation(this, expected);
         }
 
         // 2. decrements expectation
@@ -69,6 +84,7 @@ public class EncodeTagger extends Tagger {
 
     public void shrink() {
         featureIndex.buildFeatures(this);
+        featureIdListCache.trimToSize();
     }
 
     public void add(String line) {
@@ -95,19 +111,12 @@ public class EncodeTagger extends Tagger {
         throw new RuntimeException("Can't find answer ...");
     }
 
-    public void updateFeatureCache(Map<Integer, Integer> oldId2NewIdMap) {
-        for(int i=0; i<featureIdListCache.size(); i++) {
-            List<Integer> featureCacheItemList = featureIdListCache.get(i);
-            List<Integer> newCacheList = new LinkedList<>();
-
-            for(Integer it : featureCacheItemList) {
-                if(!oldId2NewIdMap.containsKey(it)) continue;
-                newCacheList.add(oldId2NewIdMap.get(it));
-            }
-
-            newCacheList.add(-1);
-            featureIdListCache.set(i, newCacheList);
-        }
+    /**
+     * @param oldId2NewId new feature id by old one, -1 if the feature is dropped
+     */
+    public void updateFeatureCache(int[] oldId2NewId) {
+        featureIdListCache.remap(oldId2NewId);
+        featureIdListCache.trimToSize();
     }
 
     public void clear() {
@@ -0,0 +1,391 @@
+package io.github.ksshim.crf4j.mutation.tagger;
+
+import io.github.ksshim.crf4j.mutation.feature.FeatureIdListCache;
+import io.github.ksshim.crf4j.mutation.feature.FeatureIndex;
+import io.github.ksshim.crf4j.mutation.feature.FeatureTemplate;
+import io.github.ksshim.crf4j.mutation.lattice.TransitionConstraints;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Online (fixed-lag) Viterbi decoder for sequences too long to be held in memory.
+ * <p>
+ * Tokens are added one by one. A position is scored once the tokens referenced by the templates
+ * have arrived, and its label is emitted as soon as all surviving paths pass through the same tag there,
+ * or at the latest when the position maxLag ahead is scored, following the best path so far
+ * (paths which disagree with the emitted label are dropped). Memory depends on the templates and maxLag,
+ * not on the sequence length.
+ * <p>
+ * Until the lag is reached, labels are the same as {@link DecodeTagger#parse()} without the tag dictionary,
+ * which needs the whole sequence to fall back safely. Not thread-safe.
+ */
+@Log4j2
+public class StreamingTagger {
+
+    private final FeatureIndex featureIndex;
+    private final TransitionConstraints constraints;
+    private final int tagListSize;
+    private final int maxLag;
+    // rows referenced by the templates before/after a position, and max column referenced + 1
+    private final int maxBack;
+    private final int maxForward;
+    private final int minWindowSize;
+
+    // tokens [windowStart, received) of the current sequence
+    private final WindowTagger window;
+    private int windowStart;
+    private int received;
+    // positions [0, scored) are scored and [0, emitted) are emitted
+    private int scored;
+    private int emitted;
+
+    // best costs of the last scored position
+    private double[] bestCost;
+    private double[] nextBestCost;
+    private final double[] nodeCost;
+    // best predecessors of positions [prevStart, scored), a row of tagListSize each
+    private int[] prev;
+    private int prevStart;
+
+    // scratch
+    private final FeatureIdListCache featureIdListCache;
+    private final int[] states;
+    private final int[] nextStates;
+    private final int[] stamps;
+    private int stamp;
+    private List<String> output;
+
+    public StreamingTagger(FeatureIndex featureIndex,
+                           double costFactor,
+                           int maxLag) {
+        if(maxLag < 0) throw new RuntimeException("maxLag must be >= 0");
+
+        this.featureIndex = featureIndex;
+        this.constraints = featureIndex.getTransitionConstraints();
+        this.tagListSize = featureIndex.tagListSize();
+        this.maxLag = maxLag;
+
+        int back = 0, forward = 0, maxColumn = 0;
+        for(FeatureTemplate[] templates : new FeatureTemplate[][]{
+                featureIndex.getCompiledUniGramTemplates(), featureIndex.getCompiledBiGramTemplates()}) {
+            for(FeatureTemplate template : templates) {
+                for(int i=0; i<template.getRows().length; i++) {
+                    back = Math.max(back, -template.getRows()[i]);
+                    forward = Math.max(forward, template.getRows()[i]);
+                    maxColumn = Math.max(maxColumn, template.getCols()[i]);
+                }
+            }
+        }
+        // rows further than BOS/EOS are never referenced
+        this.maxBack = Math.min(back, FeatureIndex.BOS.length);
+        this.maxForward = Math.min(forward, FeatureIndex.EOS.length);
+        // the feature-index skips columns >= number of rows : keep as many rows as a whole sequence would have
+        this.minWindowSize = maxColumn + 1;
+
+        this.window = new WindowTagger();
+        window.open(featureIndex, costFactor);
+
+        this.bestCost = new double[tagListSize];
+        this.nextBestCost = new double[tagListSize];
+        this.nodeCost = new double[tagListSize];
+        this.prev = new int[tagListSize * (int) Math.min(maxLag + 1L, 64)];
+
+        this.featureIdListCache = new FeatureIdListCache();
+        this.states = new int[tagListSize];
+        this.nextStates = new int[tagListSize];
+        this.stamps = new int[tagListSize + 1];
+    }
+
+    private static class WindowTagger extends Tagger {
+
+        @Override
+        public void add(String line) {
+            int inputColumnSize = featureIndex.getInputColumnSize();
+            String[] cols = line.split("[\t ]", -1);
+            if(cols.length < inputColumnSize)
+                throw new RuntimeException(
+                        "# x is small : size = " + cols.length + " x-size = " + inputColumnSize);
+
+            inputColumnsList.add(cols);
+        }
+    }
+
+    /**
+     * Adds the next token of the current sequence.
+     *
+     * @return labels decided by this token, in order (possibly none)
+     */
+    public List<String> add(String line) {
+        output = null;
+
+        window.add(line);
+        received++;
+
+        while(scored + maxForward < received && received >= minWindowSize) {
+            score();
+            decide();
+        }
+        slideWindow();
+
+        return output == null ? Collections.emptyList() : output;
+    }
+
+    /**
+     * Ends the current sequence. The next token added starts a new one.
+     *
+     * @return labels not emitted yet, in order
+     */
+    public List<String> flush() {
+        output = null;
+        if(received == 0) return Collections.emptyList();
+
+        while(scored < received) {
+            score();
+            decide();
+        }
+
+        // pick the end-node which has the best cost, same as the lattice
+        int bestY = bestEndState(true);
+        if(bestY == -1) {
+            // labels forced by the lag may leave no allowed end
+            log.warn("No allowed end of the sequence within the lag, the end constraints are ignored");
+            bestY = bestEndState(false);
+        }
+
+        emit(scored - 1, bestY);
+        List<String> result = output == null ? Collections.emptyList() : output;
+        clear();
+        return result;
+    }
+
+    /**
+     * @return state of the last position which has the best cost, -1 if no state is alive
+     */
+    private int bestEndState(boolean allowedEndOnly) {
+        int bestY = -1;
+        for(int y=0; y<tagListSize; y++) {
+            if(allowedEndOnly && constraints != null && !constraints.isAllowedEnd(y)) continue;
+            if(bestY != -1 && bestCost[bestY] >= bestCost[y]) continue;
+
+            bestY = y;
+        }
+        return bestY == -1 || bestCost[bestY] == Double.NEGATIVE_INFINITY ? -1 : bestY;
+    }
+
+    /**
+     * Drops the current sequence.
+     */
+    public void clear() {
+        window.clear();
+        windowStart = 0;
+        received = 0;
+        scored = 0;
+        emitted = 0;
+        prevStart = 0;
+    }
+
+    /**
+     * @return number of tokens added but not labeled yet
+     */
+    public int pendingSize() {
+        return received - emitted;
+    }
+
+    //**********************************************************
+    // Viterbi
+    //**********************************************************
+    /**
+     * Scores position scored, by the same search (and tie-breaking) as the lattice.
+     */
+    private void score() {
+        boolean constrained = constraints != null;
+        double threshold = constrained ? Double.NEGATIVE_INFINITY : Double.MIN_VALUE;
+        double costFactor = window.getCostFactor();
+        int cur = scored - windowStart;
+        int row = ensurePrevRow(scored);
+
+        // 1. node
+        featureIdListCache.clear();
+        featureIndex.buildFeaturesAt(featureIdListCache, window, cur, false);
+        int[] featureIds = featureIdListCache.getIds();
+        int featureSize = featureIdListCache.idSize();
+        featureIndex.calculateNodeCosts(featureIds, 0, featureSize, null, 0, tagListSize, costFactor, nodeCost, 0);
+
+        if(scored == 0) {
+            for(int y=0; y<tagListSize; y++) {
+                bestCost[y] = constrained && !constraints.isAllowedStart(y) ? Double.NEGATIVE_INFINITY : nodeCost[y];
+                prev[row + y] = -1;
+            }
+            scored++;
+            return;
+        }
+
+        // 2. path
+        featureIdListCache.clear();
+        featureIndex.buildFeaturesAt(featureIdListCache, window, cur, true);
+        featureIds = featureIdListCache.getIds();
+        featureSize = featureIdListCache.idSize();
+        for(int rY=0; rY<tagListSize; rY++) {
+            double node = nodeCost[rY];
+            double best = threshold;
+            int bestY = -1;
+            for(int lY=0; lY<tagListSize; lY++) {
+                if(constrained && !constraints.isAllowed(lY, rY)) continue;
+                if(bestCost[lY] == Double.NEGATIVE_INFINITY) continue;
+
+                double cost = bestCost[lY] + featureIndex.calculatePathCost(featureIds, 0, featureSize, lY, rY, costFactor) + node;
+                if(cost <= best) continue;
+
+                best = cost;
+                bestY = lY;
+            }
+
+            prev[row + rY] = bestY;
+            nextBestCost[rY] = bestY != -1 ? best : (constrained ? Double.NEGATIVE_INFINITY : node);
+        }
+
+        double[] swap = bestCost;
+        bestCost = nextBestCost;
+        nextBestCost = swap;
+        scored++;
+    }
+
+    /**
+     * Emits the positions where all surviving paths converge, then the positions maxLag behind the last one.
+     */
+    private void decide() {
+        int last = scored - 1;
+
+        // 1. surviving paths
+        int size = 0;
+        for(int y=0; y<tagListSize; y++) {
+            if(bestCost[y] != Double.NEGATIVE_INFINITY) states[size++] = y;
+        }
+        if(size == 0)
+            throw new RuntimeException("No allowed path : the sequence violates the transition constraints");
+
+        // 2. trace them back until they converge
+        int[] current = states;
+        int[] next = nextStates;
+        for(int cur=last; cur >= emitted; cur--) {
+            if(size == 1) {
+                emit(cur, current[0]);
+                break;
+            }
+            if(cur == emitted) break;
+
+            size = previousStates(cur, current, size, next);
+            int[] swap = current;
+            current = next;
+            next = swap;
+        }
+
+        // 3. force the positions maxLag behind
+        int to = last - maxLag;
+        if(to < emitted) return;
+
+        int bestY = -1;
+        for(int y=0; y<tagListSize; y++) {
+            if(bestY != -1 && bestCost[bestY] >= bestCost[y]) continue;
+
+            bestY = y;
+        }
+        int value = ancestorOf(bestY, last, to);
+        emit(to, value);
+
+        // drop paths which disagree with the emitted label
+        for(int y=0; y<tagListSize; y++) {
+            if(bestCost[y] != Double.NEGATIVE_INFINITY && ancestorOf(y, last, to) != value)
+                bestCost[y] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Distinct predecessors (-1 : no predecessor) of the states at cur.
+     *
+     * @return number of predecessors
+     */
+    private int previousStates(int cur,
+                               int[] states,
+                               int size,
+                               int[] previousStates) {
+        stamp++;
+        int row = (cur - prevStart) * tagListSize;
+        int n = 0;
+        for(int i=0; i<size; i++) {
+            // once a path has no predecessor it stays so : -1 maps to itself
+            int y = states[i] == -1 ? -1 : prev[row + states[i]];
+            if(stamps[y + 1] == stamp) continue;
+
+            stamps[y + 1] = stamp;
+            previousStates[n++] = y;
+        }
+        return n;
+    }
+
+    /**
+     * @return state at position to of the best path to y at cur, -1 if the path starts after to
+     */
+    private int ancestorOf(int y,
+                           int cur,
+                           int to) {
+        for(; cur > to && y != -1; cur--) {
+            y = prev[(cur - prevStart) * tagListSize + y];
+        }
+        return y;
+    }
+
+    /**
+     * Emits positions [emitted, to] by the best path through y at to. Positions before the start
+     * of the path (a node with no predecessor) get the first tag, same as the lattice.
+     */
+    private void emit(int to,
+                      int y) {
+        if(output == null) output = new ArrayList<>();
+
+        int[] labels = new int[to - emitted + 1];
+        for(int cur=to; cur >= emitted; cur--) {
+            labels[cur - emitted] = y == -1 ? 0 : y;
+            if(y != -1) y = prev[(cur - prevStart) * tagListSize + y];
+        }
+        for(int label : labels) {
+            output.add(featureIndex.getTagAt(label));
+        }
+        emitted = to + 1;
+    }
+
+    //**********************************************************
+    // Buffers
+    //**********************************************************
+    /**
+     * @return offset of the row of predecessors of position pos, moving or growing the rows if needed
+     */
+    private int ensurePrevRow(int pos) {
+        if((pos - prevStart + 1) * tagListSize > prev.length) {
+            // rows of emitted positions are not needed anymore : move the others to the front,
+            // or grow if they fill more than half (at most maxLag + 1 rows are needed)
+            int keep = pos - emitted;
+            int[] newPrev = (keep + 1) * tagListSize <= prev.length / 2 ? prev : new int[prev.length * 2];
+            System.arraycopy(prev, (emitted - prevStart) * tagListSize, newPrev, 0, keep * tagListSize);
+            prev = newPrev;
+            prevStart = emitted;
+        }
+        return (pos - prevStart) * tagListSize;
+    }
+
+    /**
+     * Drops tokens which are not referenced anymore.
+     */
+    private void slideWindow() {
+        int start = Math.max(0, Math.min(scored - maxBack, received - minWindowSize));
+        // in chunks, so that the (array) list is shifted rarely
+        if(start - windowStart < 64) return;
+
+        window.getInputColumnsList().subList(0, start - windowStart).clear();
+        windowStart = start;
+    }
+}
@@ -1,9 +1,11 @@
 package io.github.ksshim.crf4j.mutation.tagger;
 
+import io.github.ksshim.crf4j.mutation.feature.FeatureIdListCache;
 import io.github.ksshim.crf4j.mutation.feature.FeatureIndex;
 import io.github.ksshim.crf4j.mutation.lattice.LSE;
 import io.github.ksshim.crf4j.mutation.lattice.Node;
 import io.github.ksshim.crf4j.mutation.lattice.Path;
+import io.github.ksshim.crf4j.mutation.lattice.TransitionConstraints;
 import lombok.Data;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.StringUtils;
@@ -18,6 +20,7 @@ public abstract class Tagger {
 
     protected int tagListSize;
     protected double cost;
+    protected double costFactor = 1.0;
     protected double z;
     protected int threadId;
 
@@ -27,29 +30,48 @@ public abstract class Tagger {
     protected List<Integer> resultList;
 
     protected int featureIdListIndex;
-    protected List<List<Integer>> featureIdListCache;
+    protected FeatureIdListCache featureIdListCache;
+    protected final StringBuilder featureBuffer;
+    protected String[] windowBuffer;
 
     public Tagger() {
-        this.inputColumnsList = new LinkedList<>();
-        this.nodesList = new LinkedList<>();
-        this.resultList = new LinkedList<>();
-        this.featureIdListCache = new LinkedList<>();
+        this.inputColumnsList = new ArrayList<>();
+        this.nodesList = new ArrayList<>();
+        this.resultList = new ArrayList<>();
+        this.featureIdListCache = new FeatureIdListCache();
+        this.featureBuffer = new StringBuilder();
+        this.windowBuffer = new String[0];
     }
 
     public Tagger open(FeatureIndex featureIndex) {
+        return open(featureIndex, featureIndex.getCostFactor());
+    }
+
+    /**
+     * The cost factor is kept in this tagger, not in the (shared) feature-index,
+     * so that taggers with different cost factors can use one feature-index at the same time.
+     */
+    public Tagger open(FeatureIndex featureIndex, double costFactor) {
+        setCostFactor(costFactor);
+
         this.featureIndex = featureIndex;
         this.tagListSize = this.featureIndex.tagListSize();
         return this;
     }
 
-    public Tagger open(FeatureIndex featureIndex, double costFactor) {
+    /**
+     * @return scratch array of column values referenced by a template, at least size long
+     */
+    public String[] getWindowBuffer(int size) {
+        if(windowBuffer.length < size) windowBuffer = new String[size];
+        return windowBuffer;
+    }
+
+    public void setCostFactor(double costFactor) {
         if(costFactor <= 0.0)
             throw new RuntimeException("cost factor must be positive.");
 
-        this.featureIndex = featureIndex;
-        this.featureIndex.setCostFactor(costFactor);
-        this.tagListSize = this.featureIndex.tagListSize();
-        return this;
+        this.costFactor = costFactor;
     }
 
     //********************************************************************
@@ -63,14 +85,6 @@ public abstract class Tagger {
         this.featureIdListIndex = featureIdListCache.size();
     }
 
-    public void addFeatureIdList(List<Integer> featureIdList) {
-        this.featureIdListCache.add(featureIdList);
-    }
-
-    public List<Integer> getFeatureIdListAt(int index) {
-        return this.featureIdListCache.get(index);
-    }
-
     public void parse() {
         featureIndex.buildFeatures(this);
 
@@ -154,17 +168,24 @@ public abstract class Tagger {
 
         if(inputColumnsList.isEmpty()) return;
 
+        TransitionConstraints constraints = featureIndex.getTransitionConstraints();
+        int last = inputColumnsList.size() - 1;
+
         // forward (alpha)
         for(int i=0; i<inputColumnsList.size(); i++) {
             for(int j=0; j<tagListSize; j++) {
-                nodesList.get(i)[j].calcAlpha();
+                Node node = nodesList.get(i)[j];
+                node.calcAlpha();
+                if(constraints != null && !isReachable(node, constraints, last)) node.setAlpha(Double.NEGATIVE_INFINITY);
             }
         }
 
         // backward (beta)
         for(int i=inputColumnsList.size() - 1; i>=0; i--) {
             for(int j=0; j<tagListSize; j++) {
-                nodesList.get(i)[j].calcBeta();
+                Node node = nodesList.get(i)[j];
+                node.calcBeta();
+                if(constraints != null && !isReachable(node, constraints, last)) node.setBeta(Double.NEGATIVE_INFINITY);
             }
         }
 
@@ -174,6 +195,19 @@ public abstract class Tagger {
         }
     }
 
+    /**
+     * @return false if the node can't be on an allowed path : it can't start (end) the sequence,
+     * or has no path to the left (right) since all of them are forbidden transitions
+     */
+    private static boolean isReachable(Node node,
+                                       TransitionConstraints constraints,
+                                       int last) {
+        int x = node.getX();
+        if(x == 0 ? !constraints.isAllowedStart(node.getY()) : node.getLeftPathList().isEmpty()) return false;
+        if(x == last ? !constraints.isAllowedEnd(node.getY()) : node.getRightPathList().isEmpty()) return false;
+        return true;
+    }
+
     private void calculateBestNodeAndCost(Node node) {
         double bestCost = Double.MIN_VALUE;
         Node best = null;
@@ -191,10 +225,15 @@ public abstract class Tagger {
 
     public void viterbi() {
 
+        TransitionConstraints constraints = featureIndex.getTransitionConstraints();
+        int last = inputColumnsList.size() - 1;
+
         // 1. calculate best node and cost
         for(int i=0; i<inputColumnsList.size(); i++) {
             for(int j=0; j<tagListSize; j++) {
-                calculateBestNodeAndCost(nodesList.get(i)[j]);
+                Node node = nodesList.get(i)[j];
+                calculateBestNodeAndCost(node);
+                if(constraints != null && !isReachable(node, constraints, last)) node.setBestCost(Double.NEGATIVE_INFINITY);
             }
         }
 
@@ -224,12 +263,12 @@ public abstract class Tagger {
     //
     //********************************************************************
     private void calculateNodeAndPathCost(Node node) {
-        featureIndex.calculateCost(node);
+        featureIndex.calculateCost(node, costFactor);
 
         Iterator<Path> iter = node.leftPathIterator();
         while(iter.hasNext()) {
             Path path = iter.next();
-            featureIndex.calculateCost(path);
+            featureIndex.calculateCost(path, costFactor);
         }
     }
 
@@ -359,13 +359,11 @@ public class DoubleArrayTrie implements Serializable {
 
         int result = -1;
 
-        char[] keyChars = key.toCharArray();
-
         int b = base[nodePos];
         int p;
 
         for (int i = pos; i < len; i++) {
-            p = b + (int) (keyChars[i]) + 1;
+            p = b + (int) (key.charAt(i)) + 1;
             if (b == check[p])
                 b = base[p];
             else
@@ -380,6 +378,41 @@ public class DoubleArrayTrie implements Serializable {
         return result;
     }
 
+    //**********************************************************
+    // Incremental search : walks the trie a piece at a time
+    // without building the whole key.
+    // A state is the base of the last matched node, -1 if not matched.
+    //**********************************************************
+    public int rootState() {
+        return base[0];
+    }
+
+    public int transition(int state, char c) {
+        if (state < 0) return -1;
+
+        int p = state + (int) c + 1;
+        if (p >= check.length || state != check[p]) return -1;
+        return base[p];
+    }
+
+    public int transition(int state, CharSequence key) {
+        for (int i = 0; i < key.length() && state >= 0; i++) {
+            state = transition(state, key.charAt(i));
+        }
+        return state;
+    }
+
+    /**
+     * @return value of the key which ends at the state, -1 if not a key.
+     */
+    public int valueOf(int state) {
+        if (state < 0 || state >= check.length) return -1;
+
+        int n = base[state];
+        if (state == check[state] && n < 0) return -n - 1;
+        return -1;
+    }
+
     public List<Integer> commonPrefixSearch(String key) {
         return commonPrefixSearch(key, 0, 0, 0);
     }
@@ -0,0 +1,141 @@
+package io.github.ksshim.crf4j.mutation.trie;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only double array trie whose base/check arrays are memory-mapped file regions.
+ * Only the search methods are supported : the arrays are not on the heap, so getBase()/getCheck() throw
+ * and callers which need them must use {@link #toDoubleArrayTrie()} first.
+ */
+public class MappedDoubleArrayTrie extends DoubleArrayTrie {
+
+    private static final long serialVersionUID = 2894561039583746527L;
+
+    private final transient IntBuffer mappedBase;
+    private final transient IntBuffer mappedCheck;
+    private final int length;
+
+    private MappedDoubleArrayTrie(IntBuffer mappedBase, IntBuffer mappedCheck) {
+        this.mappedBase = mappedBase;
+        this.mappedCheck = mappedCheck;
+        this.length = mappedBase.limit();
+        setSize(length);
+    }
+
+    /**
+     * Maps base[length] followed by check[length] (both big-endian ints) at offset.
+     */
+    public static MappedDoubleArrayTrie map(FileChannel channel,
+                                            long offset,
+                                            int length) throws IOException {
+        long byteSize = 4L * length;
+        if(byteSize > Integer.MAX_VALUE)
+            throw new IOException("trie is too large to be mapped : " + length);
+
+        IntBuffer base = channel.map(FileChannel.MapMode.READ_ONLY, offset, byteSize).asIntBuffer();
+        IntBuffer check = channel.map(FileChannel.MapMode.READ_ONLY, offset + byteSize, byteSize).asIntBuffer();
+        return new MappedDoubleArrayTrie(base, check);
+    }
+
+    /**
+     * @return trie on the heap with copies of the mapped arrays
+     */
+    public DoubleArrayTrie toDoubleArrayTrie() {
+        int[] base = new int[length];
+        int[] check = new int[length];
+        mappedBase.duplicate().get(base);
+        mappedCheck.duplicate().get(check);
+
+        DoubleArrayTrie dat = new DoubleArrayTrie();
+        dat.setBase(base);
+        dat.setCheck(check);
+        dat.setSize(length);
+        return dat;
+    }
+
+    @Override
+    public int exactMatchSearch(String key, int pos, int len, int nodePos) {
+        if (len <= 0)
+            len = key.length();
+        if (nodePos <= 0)
+            nodePos = 0;
+
+        int b = mappedBase.get(nodePos);
+        for (int i = pos; i < len && b >= 0; i++) {
+            b = transition(b, key.charAt(i));
+        }
+        return valueOf(b);
+    }
+
+    @Override
+    public List<Integer> commonPrefixSearch(String key, int pos, int len, int nodePos) {
+        if (len <= 0)
+            len = key.length();
+        if (nodePos <= 0)
+            nodePos = 0;
+
+        List<Integer> result = new ArrayList<Integer>();
+        int b = mappedBase.get(nodePos);
+        for (int i = pos; i < len && b >= 0; i++) {
+            int value = valueOf(b);
+            if (value != -1) result.add(value);
+            b = transition(b, key.charAt(i));
+        }
+        int value = valueOf(b);
+        if (value != -1) result.add(value);
+        return result;
+    }
+
+    @Override
+    public int rootState() {
+        return mappedBase.get(0);
+    }
+
+    @Override
+    public int transition(int state, char c) {
+        if (state < 0) return -1;
+
+        int p = state + (int) c + 1;
+        if (p >= length || state != mappedCheck.get(p)) return -1;
+        return mappedBase.get(p);
+    }
+
+    @Override
+    public int valueOf(int state) {
+        if (state < 0 || state >= length) return -1;
+
+        int n = mappedBase.get(state);
+        if (state == mappedCheck.get(state) && n < 0) return -n - 1;
+        return -1;
+    }
+
+    @Override
+    public int[] getBase() {
+        throw new RuntimeException("base of a mapped trie is not on the heap : use toDoubleArrayTrie()");
+    }
+
+    @Override
+    public int[] getCheck() {
+        throw new RuntimeException("check of a mapped trie is not on the heap : use toDoubleArrayTrie()");
+    }
+
+    // the getters above throw : equality of the mapped regions is not needed
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return "MappedDoubleArrayTrie(size=" + length + ")";
+    }
+}
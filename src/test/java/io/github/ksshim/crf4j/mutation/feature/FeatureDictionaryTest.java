@@ -0,0 +1,79 @@
+package io.github.ksshim.crf4j.mutation.feature;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureDictionaryTest {
+
+    @Test
+    public void findAndAdd() {
+        FeatureDictionary dictionary = new FeatureDictionary();
+        assertTrue(dictionary.isEmpty());
+        assertEquals(-1, dictionary.find("U00:a"));
+
+        int entry = dictionary.add("U00:a", 0, 1);
+        assertEquals(entry, dictionary.find("U00:a"));
+        assertEquals(entry, dictionary.find(new StringBuilder("U00:a")));
+        assertEquals(-1, dictionary.find("U00:"));
+        assertEquals(-1, dictionary.find("U00:ab"));
+
+        dictionary.incrementFrequency(entry);
+        assertEquals("U00:a", dictionary.getKey(entry));
+        assertEquals('U', dictionary.getFirstChar(entry));
+        assertEquals(0, dictionary.getId(entry));
+        assertEquals(2, dictionary.getFrequency(entry));
+    }
+
+    @Test
+    public void collidingHashes() {
+        // "Aa" and "BB" have the same String.hashCode()
+        FeatureDictionary dictionary = new FeatureDictionary();
+        int aa = dictionary.add("Aa", 10, 1);
+        assertEquals(-1, dictionary.find("BB"));
+
+        int bb = dictionary.add("BB", 20, 1);
+        assertEquals(aa, dictionary.find("Aa"));
+        assertEquals(bb, dictionary.find("BB"));
+        assertEquals(20, dictionary.getId(dictionary.find("BB")));
+        assertEquals(Integer.signum("Aa".compareTo("BB")), Integer.signum(dictionary.compareKeys(aa, bb)));
+    }
+
+    @Test
+    public void growth() {
+        // past the initial capacity of entries, slots and arena
+        FeatureDictionary dictionary = new FeatureDictionary();
+        Map<String, Integer> expected = new HashMap<>();
+        for(int i=0; i<100000; i++) {
+            String key = "U" + (i % 7) + ":" + Integer.toString(i * 7919, 36) + (i % 13 == 0 ? "/long-suffix-of-a-key" : "");
+            expected.put(key, dictionary.add(key, i * 4, i));
+        }
+
+        assertEquals(expected.size(), dictionary.size());
+        for(Map.Entry<String, Integer> e : expected.entrySet()) {
+            int entry = dictionary.find(e.getKey());
+            assertEquals(e.getValue().intValue(), entry);
+            assertEquals(e.getKey(), dictionary.getKey(entry));
+            assertEquals(entry * 4, dictionary.getId(entry));
+            assertEquals(entry, dictionary.getFrequency(entry));
+        }
+        assertEquals(-1, dictionary.find("U0:absent"));
+    }
+
+    @Test
+    public void compareKeys() {
+        FeatureDictionary dictionary = new FeatureDictionary();
+        String[] keys = {"B", "U00:a", "U00:ab", "U00:b", "U01:a", "", "한"};
+        for(int i=0; i<keys.length; i++) dictionary.add(keys[i], i, 1);
+
+        for(int i=0; i<keys.length; i++) {
+            for(int j=0; j<keys.length; j++) {
+                assertEquals(Integer.signum(keys[i].compareTo(keys[j])), Integer.signum(dictionary.compareKeys(i, j)));
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.ksshim.crf4j.mutation.feature;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureIdListCacheTest {
+
+    @Test
+    public void lists() {
+        FeatureIdListCache cache = newCache(new int[][]{{1, 2, 3}, {}, {4}});
+
+        assertEquals(3, cache.size());
+        assertEquals(4, cache.idSize());
+        assertEquals(0, cache.offsetOf(0));
+        assertEquals(3, cache.offsetOf(1));
+        assertEquals(3, cache.offsetOf(2));
+        assertEquals(4, cache.offsetOf(3));
+        assertEquals(0, cache.listSizeAt(1));
+        assertEquals(1, cache.listSizeAt(2));
+        assertSame(cache.getIds(), cache.getExpectedIds());
+    }
+
+    @Test
+    public void growth() {
+        // past the initial list and id capacities
+        int[][] lists = new int[100][];
+        for(int list=0; list<lists.length; list++) {
+            lists[list] = new int[list % 5];
+            for(int i=0; i<lists[list].length; i++) lists[list][i] = list * 10 + i;
+        }
+        FeatureIdListCache cache = newCache(lists);
+        cache.trimToSize();
+
+        assertEquals(lists.length, cache.size());
+        for(int list=0; list<lists.length; list++) {
+            assertArrayEquals(lists[list], listAt(cache, list));
+        }
+    }
+
+    @Test
+    public void remap() {
+        FeatureIdListCache cache = newCache(new int[][]{{0, 1, 2}, {3}, {1, 3, 4}});
+        cache.setExpectedIds(new int[]{9, 9, 9, 9, 9, 9, 9});
+        // 1 and 3 dropped
+        cache.remap(new int[]{10, -1, 20, -1, 40});
+
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.idSize());
+        assertArrayEquals(new int[]{10, 20}, listAt(cache, 0));
+        assertArrayEquals(new int[]{}, listAt(cache, 1));
+        assertArrayEquals(new int[]{40}, listAt(cache, 2));
+        // the expected ids were of the old ids : dropped
+        assertSame(cache.getIds(), cache.getExpectedIds());
+    }
+
+    @Test
+    public void expectedIds() {
+        FeatureIdListCache cache = newCache(new int[][]{{5, 6}});
+        int[] expectedIds = {0, 1};
+        cache.setExpectedIds(expectedIds);
+        assertSame(expectedIds, cache.getExpectedIds());
+
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.idSize());
+        assertSame(cache.getIds(), cache.getExpectedIds());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void expectedIdsTooShort() {
+        newCache(new int[][]{{5, 6}}).setExpectedIds(new int[1]);
+    }
+
+    private static FeatureIdListCache newCache(int[][] lists) {
+        FeatureIdListCache cache = new FeatureIdListCache();
+        for(int[] list : lists) {
+            for(int id : list) cache.add(id);
+            cache.endList();
+        }
+        return cache;
+    }
+
+    private static int[] listAt(FeatureIdListCache cache, int list) {
+        return Arrays.copyOfRange(cache.getIds(), cache.offsetOf(list), cache.offsetOf(list + 1));
+    }
+}
@@ -0,0 +1,107 @@
+package io.github.ksshim.crf4j.mutation.lattice;
+
+import io.github.ksshim.crf4j.mutation.constants.TagScheme;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransitionConstraintsTest {
+
+    private final static List<String> BIO_TAGS = Arrays.asList("O", "B-X", "I-X", "B-Y", "I-Y");
+    private final static List<String> BIOES_TAGS = Arrays.asList("O", "B-X", "I-X", "E-X", "S-X", "B-Y", "E-Y", "S-Y");
+
+    @Test
+    public void bio() {
+        TransitionConstraints constraints = TransitionConstraints.of(BIO_TAGS, TagScheme.BIO, null);
+
+        assertFalse(isAllowed(constraints, BIO_TAGS, "O", "I-X"));
+        assertFalse(isAllowed(constraints, BIO_TAGS, "B-X", "I-Y"));
+        assertFalse(isAllowed(constraints, BIO_TAGS, "I-Y", "I-X"));
+        assertTrue(isAllowed(constraints, BIO_TAGS, "B-X", "I-X"));
+        assertTrue(isAllowed(constraints, BIO_TAGS, "I-X", "I-X"));
+        assertTrue(isAllowed(constraints, BIO_TAGS, "I-X", "B-Y"));
+        assertTrue(isAllowed(constraints, BIO_TAGS, "B-X", "O"));
+
+        assertFalse(constraints.isAllowedStart(BIO_TAGS.indexOf("I-X")));
+        assertTrue(constraints.isAllowedStart(BIO_TAGS.indexOf("B-X")));
+        assertTrue(constraints.isAllowedStart(BIO_TAGS.indexOf("O")));
+        // any tag can end a BIO sequence
+        for(int y=0; y<BIO_TAGS.size(); y++) assertTrue(constraints.isAllowedEnd(y));
+    }
+
+    @Test
+    public void bioes() {
+        TransitionConstraints constraints = TransitionConstraints.of(BIOES_TAGS, TagScheme.BIOES, null);
+
+        assertFalse(isAllowed(constraints, BIOES_TAGS, "B-X", "O"));
+        assertFalse(isAllowed(constraints, BIOES_TAGS, "B-X", "B-X"));
+        assertFalse(isAllowed(constraints, BIOES_TAGS, "B-X", "E-Y"));
+        assertFalse(isAllowed(constraints, BIOES_TAGS, "O", "E-X"));
+        assertTrue(isAllowed(constraints, BIOES_TAGS, "B-X", "I-X"));
+        assertTrue(isAllowed(constraints, BIOES_TAGS, "B-X", "E-X"));
+        assertTrue(isAllowed(constraints, BIOES_TAGS, "E-X", "B-Y"));
+        assertTrue(isAllowed(constraints, BIOES_TAGS, "S-X", "B-Y"));
+        assertTrue(isAllowed(constraints, BIOES_TAGS, "S-X", "S-X"));
+
+        assertFalse(constraints.isAllowedEnd(BIOES_TAGS.indexOf("B-X")));
+        assertFalse(constraints.isAllowedEnd(BIOES_TAGS.indexOf("I-X")));
+        assertTrue(constraints.isAllowedEnd(BIOES_TAGS.indexOf("E-X")));
+        assertTrue(constraints.isAllowedEnd(BIOES_TAGS.indexOf("S-X")));
+        assertFalse(constraints.isAllowedStart(BIOES_TAGS.indexOf("E-X")));
+        assertTrue(constraints.isAllowedStart(BIOES_TAGS.indexOf("S-X")));
+    }
+
+    @Test
+    public void offSchemeTagsAreUnconstrained() {
+        List<String> tags = Arrays.asList("O", "B-X", "I-X", "PUNCT", "X");
+        TransitionConstraints constraints = TransitionConstraints.of(tags, TagScheme.BIO, null);
+
+        for(String tag : tags) {
+            assertTrue(isAllowed(constraints, tags, tag, "PUNCT"));
+            assertTrue(isAllowed(constraints, tags, tag, "X"));
+        }
+        assertTrue(isAllowed(constraints, tags, "PUNCT", "B-X"));
+        assertTrue(isAllowed(constraints, tags, "PUNCT", "O"));
+        // but they don't continue an entity
+        assertFalse(isAllowed(constraints, tags, "PUNCT", "I-X"));
+        assertTrue(constraints.isAllowedStart(tags.indexOf("PUNCT")));
+        assertTrue(constraints.isAllowedEnd(tags.indexOf("PUNCT")));
+    }
+
+    @Test
+    public void noConstraint() {
+        assertNull(TransitionConstraints.of(BIO_TAGS, TagScheme.NONE, null));
+        assertNull(TransitionConstraints.of(Arrays.asList("A", "B"), TagScheme.BIO, null));
+    }
+
+    @Test
+    public void forbiddenTransitions() {
+        List<String> tags = Arrays.asList("A", "B");
+        TransitionConstraints constraints = TransitionConstraints.of(tags, TagScheme.NONE,
+                Collections.singletonList(Pair.of("A", "B")));
+
+        assertFalse(isAllowed(constraints, tags, "A", "B"));
+        assertTrue(isAllowed(constraints, tags, "B", "A"));
+        assertFalse(constraints.isValid(Arrays.asList(0, 1)));
+        assertTrue(constraints.isValid(Arrays.asList(1, 0, 0)));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unknownTagInForbiddenTransitions() {
+        TransitionConstraints.of(BIO_TAGS, TagScheme.BIO, Collections.singletonList(Pair.of("B-X", "I-Z")));
+    }
+
+    private static boolean isAllowed(TransitionConstraints constraints,
+                                     List<String> tags,
+                                     String lTag,
+                                     String rTag) {
+        return constraints.isAllowed(tags.indexOf(lTag), tags.indexOf(rTag));
+    }
+}